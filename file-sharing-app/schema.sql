@@ -8,7 +8,8 @@ CREATE TABLE IF NOT EXISTS users (
     name VARCHAR(255) NOT NULL,
     email VARCHAR(255) NOT NULL UNIQUE,
     password VARCHAR(255) NOT NULL,
-    role VARCHAR(50) NOT NULL DEFAULT 'USER'
+    role VARCHAR(50) NOT NULL DEFAULT 'USER',
+    storage_quota BIGINT
 );
 
 -- Files Table
@@ -18,11 +19,38 @@ CREATE TABLE IF NOT EXISTS files (
     file_type VARCHAR(50) NOT NULL,
     size BIGINT NOT NULL,
     file_path VARCHAR(500) NOT NULL,
+    content_hash VARCHAR(64),
+    etag VARCHAR(64),
+    content_encoding VARCHAR(255),
+    mime_type VARCHAR(255),
+    processing_status VARCHAR(20),
+    processing_started DATETIME,
+    missing_since DATETIME,
+    download_count BIGINT NOT NULL DEFAULT 0,
+    download_bytes BIGINT NOT NULL DEFAULT 0,
     uploaded_by BIGINT NOT NULL,
     upload_time DATETIME NOT NULL,
     FOREIGN KEY (uploaded_by) REFERENCES users(id) ON DELETE CASCADE
 );
 
+-- Blobs Table (content-addressed storage, one row per distinct content)
+CREATE TABLE IF NOT EXISTS blobs (
+    id BIGINT PRIMARY KEY AUTO_INCREMENT,
+    content_hash VARCHAR(64) NOT NULL UNIQUE,
+    size BIGINT NOT NULL,
+    content_encoding VARCHAR(255),
+    ref_count BIGINT NOT NULL,
+    created_time DATETIME NOT NULL
+);
+
+-- User Usage Table (bytes stored per user, written by the quota service)
+CREATE TABLE IF NOT EXISTS user_usage (
+    user_id BIGINT PRIMARY KEY,
+    used_bytes BIGINT NOT NULL,
+    updated_time DATETIME NOT NULL,
+    FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE
+);
+
 -- Share Tokens Table
 CREATE TABLE IF NOT EXISTS share_tokens (
     id BIGINT PRIMARY KEY AUTO_INCREMENT,
@@ -30,11 +58,28 @@ CREATE TABLE IF NOT EXISTS share_tokens (
     file_id BIGINT NOT NULL,
     expiry_time DATETIME NOT NULL,
     created_time DATETIME NOT NULL,
+    max_bytes_per_second BIGINT,
+    download_count BIGINT NOT NULL DEFAULT 0,
+    download_bytes BIGINT NOT NULL DEFAULT 0,
     FOREIGN KEY (file_id) REFERENCES files(id) ON DELETE CASCADE
 );
 
+-- Signed share links revoked before their expiry
+CREATE TABLE IF NOT EXISTS revoked_share_links (
+    id BIGINT PRIMARY KEY AUTO_INCREMENT,
+    link_id VARCHAR(32) NOT NULL UNIQUE,
+    expiry_time DATETIME NOT NULL,
+    revoked_time DATETIME NOT NULL
+);
+
 -- Indexes for better query performance
 CREATE INDEX idx_email ON users(email);
 CREATE INDEX idx_uploaded_by ON files(uploaded_by);
+CREATE INDEX idx_file_path ON files(file_path);
 CREATE INDEX idx_token ON share_tokens(token);
 CREATE INDEX idx_file_id ON share_tokens(file_id);
+CREATE INDEX idx_expiry_time ON share_tokens(expiry_time);
+CREATE INDEX idx_revoked_expiry_time ON revoked_share_links(expiry_time);
+
+-- Files stored by content hash before ETags were issued use the hash as their validator
+UPDATE files SET etag = content_hash WHERE etag IS NULL AND content_hash IS NOT NULL;
@@ -2,12 +2,14 @@ package com.filesharing;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 /**
  * Main application class for the Secure File Sharing Application
  * This is the entry point of the Spring Boot application
  */
 @SpringBootApplication
+@EnableScheduling
 public class FileSharingApplication {
     
     public static void main(String[] args) {
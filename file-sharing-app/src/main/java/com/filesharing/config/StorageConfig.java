@@ -0,0 +1,107 @@
+package com.filesharing.config;
+
+import com.filesharing.storage.InMemoryObjectStoreClient;
+import com.filesharing.storage.LocalStorageBackend;
+import com.filesharing.storage.MappedStorageBackend;
+import com.filesharing.storage.ObjectStorageBackend;
+import com.filesharing.storage.ObjectStoreClient;
+import com.filesharing.storage.PackStorageBackend;
+import com.filesharing.storage.S3ObjectStoreClient;
+import com.filesharing.storage.StorageBackend;
+import com.filesharing.storage.StoragePathResolver;
+import com.filesharing.storage.StripedStorageBackend;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Storage configuration for the application
+ * Selects the storage backend for this deployment with storage.backend:
+ * local (default), mmap, pack, striped, or s3
+ */
+@Configuration
+public class StorageConfig {
+    
+    @Value("${storage.backend}")
+    private String backend;
+    
+    @Value("${storage.pack.dir}")
+    private String packDir;
+    
+    @Value("${storage.pack.max-entry-size}")
+    private DataSize packMaxEntrySize;
+    
+    @Value("${storage.pack.segment-size}")
+    private DataSize packSegmentSize;
+    
+    @Value("${storage.pack.compaction-threshold}")
+    private double packCompactionThreshold;
+    
+    @Value("${storage.striped.roots}")
+    private List<String> stripedRoots;
+    
+    @Value("${storage.striped.replicas}")
+    private int stripedReplicas;
+    
+    @Value("${storage.striped.read-timeout}")
+    private Duration stripedReadTimeout;
+    
+    @Value("${storage.s3.client}")
+    private String s3Client;
+    
+    @Value("${storage.s3.endpoint}")
+    private String s3Endpoint;
+    
+    @Value("${storage.s3.region}")
+    private String s3Region;
+    
+    @Value("${storage.s3.bucket}")
+    private String s3Bucket;
+    
+    @Value("${storage.s3.access-key}")
+    private String s3AccessKey;
+    
+    @Value("${storage.s3.secret-key}")
+    private String s3SecretKey;
+    
+    @Value("${storage.s3.key-prefix}")
+    private String s3KeyPrefix;
+    
+    /**
+     * Storage backend bean for the configured backend type
+     */
+    @Bean
+    public StorageBackend storageBackend(StoragePathResolver storagePathResolver) throws IOException {
+        switch (backend) {
+            case "local":
+                return new LocalStorageBackend(storagePathResolver);
+            case "mmap":
+                return new MappedStorageBackend(storagePathResolver);
+            case "pack":
+                return new PackStorageBackend(new LocalStorageBackend(storagePathResolver),
+                        Paths.get(packDir).toAbsolutePath().normalize(), packMaxEntrySize.toBytes(),
+                        packSegmentSize.toBytes(), packCompactionThreshold);
+            case "striped":
+                return new StripedStorageBackend(stripedRoots, stripedReplicas, stripedReadTimeout);
+            case "s3":
+                return new ObjectStorageBackend(objectStoreClient(), s3KeyPrefix);
+            default:
+                throw new IllegalStateException("Unknown storage.backend: " + backend);
+        }
+    }
+    
+    /**
+     * Object store client; "in-memory" runs against an in-process stand-in
+     */
+    private ObjectStoreClient objectStoreClient() {
+        if ("in-memory".equals(s3Client)) {
+            return new InMemoryObjectStoreClient();
+        }
+        return new S3ObjectStoreClient(s3Endpoint, s3Region, s3Bucket, s3AccessKey, s3SecretKey);
+    }
+}
@@ -0,0 +1,94 @@
+package com.filesharing.controller;
+
+import com.filesharing.dto.FileResponse;
+import com.filesharing.dto.UploadSessionRequest;
+import com.filesharing.dto.UploadSessionResponse;
+import com.filesharing.service.ChunkedUploadService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.validation.Valid;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.*;
+import java.io.IOException;
+
+/**
+ * REST Controller for chunked, resumable uploads
+ * Handles session creation, chunk upload, progress and completion
+ */
+@RestController
+@RequestMapping("/api/files/uploads")
+@CrossOrigin(origins = "*")
+public class ChunkedUploadController {
+    
+    @Autowired
+    private ChunkedUploadService chunkedUploadService;
+    
+    /**
+     * Start a chunked upload
+     * POST /api/files/uploads
+     */
+    @PostMapping
+    public ResponseEntity<UploadSessionResponse> createUpload(
+            @Valid @RequestBody UploadSessionRequest request,
+            Authentication authentication) {
+        String userEmail = authentication.getName();
+        UploadSessionResponse response = chunkedUploadService.createUpload(request, userEmail);
+        return ResponseEntity.ok(response);
+    }
+    
+    /**
+     * Upload one chunk
+     * PUT /api/files/uploads/{uploadId}?offset=0
+     */
+    @PutMapping(value = "/{uploadId}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<UploadSessionResponse> uploadChunk(
+            @PathVariable String uploadId,
+            @RequestParam("offset") long offset,
+            HttpServletRequest request,
+            Authentication authentication) throws IOException {
+        String userEmail = authentication.getName();
+        UploadSessionResponse response = chunkedUploadService.writeChunk(
+                uploadId, offset, request.getInputStream(), request.getContentLengthLong(), userEmail);
+        return ResponseEntity.ok(response);
+    }
+    
+    /**
+     * Get upload progress, including the offset to resume from
+     * GET /api/files/uploads/{uploadId}
+     */
+    @GetMapping("/{uploadId}")
+    public ResponseEntity<UploadSessionResponse> getUpload(
+            @PathVariable String uploadId,
+            Authentication authentication) {
+        String userEmail = authentication.getName();
+        return ResponseEntity.ok(chunkedUploadService.getUpload(uploadId, userEmail));
+    }
+    
+    /**
+     * Finish an upload once all chunks are in
+     * POST /api/files/uploads/{uploadId}/complete
+     */
+    @PostMapping("/{uploadId}/complete")
+    public ResponseEntity<FileResponse> completeUpload(
+            @PathVariable String uploadId,
+            Authentication authentication) {
+        String userEmail = authentication.getName();
+        FileResponse response = chunkedUploadService.completeUpload(uploadId, userEmail);
+        return ResponseEntity.ok(response);
+    }
+    
+    /**
+     * Abort an upload
+     * DELETE /api/files/uploads/{uploadId}
+     */
+    @DeleteMapping("/{uploadId}")
+    public ResponseEntity<Void> abortUpload(
+            @PathVariable String uploadId,
+            Authentication authentication) {
+        String userEmail = authentication.getName();
+        chunkedUploadService.abortUpload(uploadId, userEmail);
+        return ResponseEntity.noContent().build();
+    }
+}
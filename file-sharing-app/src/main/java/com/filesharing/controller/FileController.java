@@ -1,15 +1,28 @@
 package com.filesharing.controller;
 
+import com.filesharing.dto.BatchUploadResult;
+import com.filesharing.dto.BlockSignaturesResponse;
+import com.filesharing.dto.FileBundleRequest;
 import com.filesharing.dto.FileResponse;
+import com.filesharing.entity.FileEntity;
+import com.filesharing.service.BundleService;
+import com.filesharing.service.DeltaUploadService;
+import com.filesharing.service.DownloadService;
 import com.filesharing.service.FileService;
+import com.filesharing.service.ThumbnailService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.validation.Valid;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -24,6 +37,18 @@ public class FileController {
     @Autowired
     private FileService fileService;
     
+    @Autowired
+    private DownloadService downloadService;
+    
+    @Autowired
+    private ThumbnailService thumbnailService;
+    
+    @Autowired
+    private BundleService bundleService;
+    
+    @Autowired
+    private DeltaUploadService deltaUploadService;
+    
     /**
      * Upload a file
      * POST /api/files/upload
@@ -37,6 +62,35 @@ public class FileController {
         return ResponseEntity.ok(response);
     }
     
+    /**
+     * Upload many files in one request
+     * POST /api/files/upload/batch
+     */
+    @PostMapping("/upload/batch")
+    public ResponseEntity<List<BatchUploadResult>> uploadFiles(
+            @RequestParam("files") List<MultipartFile> files,
+            Authentication authentication) {
+        String userEmail = authentication.getName();
+        List<BatchUploadResult> results = fileService.uploadFiles(files, userEmail);
+        return ResponseEntity.ok(results);
+    }
+    
+    /**
+     * Upload a file as a raw request body
+     * POST /api/files/upload/stream?filename=report.pdf
+     * The body is streamed straight to storage without multipart spooling
+     */
+    @PostMapping(value = "/upload/stream", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<FileResponse> uploadFileStream(
+            @RequestParam("filename") String filename,
+            HttpServletRequest request,
+            Authentication authentication) throws IOException {
+        String userEmail = authentication.getName();
+        FileResponse response = fileService.uploadFileStream(
+                request.getInputStream(), filename, request.getContentLengthLong(), userEmail);
+        return ResponseEntity.ok(response);
+    }
+    
     /**
      * Get all files uploaded by current user
      * GET /api/files/my-files
@@ -53,16 +107,105 @@ public class FileController {
      * GET /api/files/download/{fileId}
      */
     @GetMapping("/download/{fileId}")
-    public ResponseEntity<Resource> downloadFile(
+    public void downloadFile(
             @PathVariable Long fileId,
-            Authentication authentication) {
+            Authentication authentication,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
         String userEmail = authentication.getName();
-        Resource resource = fileService.downloadFile(fileId, userEmail);
+        FileEntity file = fileService.getFileForDownload(fileId, userEmail);
+        downloadService.serveFile(file, null, null, request, response);
+    }
+    
+    /**
+     * Download several files as one ZIP
+     * POST /api/files/download/bundle
+     */
+    @PostMapping("/download/bundle")
+    public void downloadBundle(
+            @Valid @RequestBody FileBundleRequest bundleRequest,
+            Authentication authentication,
+            HttpServletResponse response) throws IOException {
+        String userEmail = authentication.getName();
+        List<FileEntity> files = fileService.getFilesForDownload(bundleRequest.getFileIds(), userEmail);
+        bundleService.writeZip(files, null, "files.zip", response);
+    }
+    
+    /**
+     * Get a thumbnail of an image file
+     * GET /api/files/{fileId}/thumbnail?width=128
+     */
+    @GetMapping("/{fileId}/thumbnail")
+    public ResponseEntity<byte[]> getThumbnail(
+            @PathVariable Long fileId,
+            @RequestParam(value = "width", defaultValue = "128") int width,
+            Authentication authentication,
+            WebRequest webRequest) throws IOException {
+        String userEmail = authentication.getName();
+        FileEntity file = fileService.getFileForDownload(fileId, userEmail);
+        if (!thumbnailService.supports(file)) {
+            return ResponseEntity.notFound().build();
+        }
+        
+        // The content hash pins the image, so the ETag can be checked before rendering
+        String etag = file.getEtag() == null ? null : "\"" + file.getEtag() + "-w" + width + "\"";
+        if (etag != null && webRequest.checkNotModified(etag)) {
+            return null;
+        }
         
-        return ResponseEntity.ok()
-                .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                .header(HttpHeaders.CONTENT_DISPOSITION, 
-                        "attachment; filename=\"" + resource.getFilename() + "\"")
-                .body(resource);
+        ThumbnailService.Thumbnail thumbnail = thumbnailService.getThumbnail(file, width);
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .contentType(thumbnail.getMediaType())
+                .cacheControl(CacheControl.noCache().cachePrivate());
+        if (etag != null) {
+            builder.eTag(etag);
+        }
+        return builder.body(thumbnail.getData());
+    }
+    
+    /**
+     * Get the block signatures of a file, for computing a delta upload
+     * GET /api/files/{fileId}/signatures?blockSize=8192
+     */
+    @GetMapping("/{fileId}/signatures")
+    public ResponseEntity<BlockSignaturesResponse> getSignatures(
+            @PathVariable Long fileId,
+            @RequestParam(value = "blockSize", required = false) Integer blockSize,
+            Authentication authentication) throws IOException {
+        String userEmail = authentication.getName();
+        FileEntity file = fileService.getFileForDownload(fileId, userEmail);
+        return ResponseEntity.ok(deltaUploadService.getSignatures(file, blockSize));
+    }
+    
+    /**
+     * Upload a new version of a file as a delta against its current content
+     * POST /api/files/{fileId}/delta?blockSize=8192 with If-Match: "<etag from the signatures>"
+     */
+    @PostMapping(value = "/{fileId}/delta", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<FileResponse> uploadDelta(
+            @PathVariable Long fileId,
+            @RequestParam("blockSize") int blockSize,
+            @RequestHeader(HttpHeaders.IF_MATCH) String ifMatch,
+            HttpServletRequest request,
+            Authentication authentication) throws IOException {
+        String userEmail = authentication.getName();
+        FileEntity file = fileService.getFileForDownload(fileId, userEmail);
+        String expectedEtag = ifMatch.replace("W/", "").replace("\"", "").trim();
+        FileResponse response = deltaUploadService.applyDelta(
+                file, expectedEtag, blockSize, request.getInputStream());
+        return ResponseEntity.ok(response);
+    }
+    
+    /**
+     * Delete a file
+     * DELETE /api/files/{fileId}
+     */
+    @DeleteMapping("/{fileId}")
+    public ResponseEntity<Void> deleteFile(
+            @PathVariable Long fileId,
+            Authentication authentication) {
+        String userEmail = authentication.getName();
+        fileService.deleteFile(fileId, userEmail);
+        return ResponseEntity.noContent().build();
     }
 }
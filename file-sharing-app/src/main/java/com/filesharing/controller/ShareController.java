@@ -1,14 +1,26 @@
 package com.filesharing.controller;
 
+import com.filesharing.dto.BulkShareRequest;
+import com.filesharing.dto.ShareBundleRequest;
 import com.filesharing.dto.ShareLinkResponse;
+import com.filesharing.entity.FileEntity;
+import com.filesharing.service.BandwidthShapedResponse;
+import com.filesharing.service.BundleService;
+import com.filesharing.service.DownloadService;
+import com.filesharing.service.ShareRateLimiter;
 import com.filesharing.service.ShareService;
+import com.filesharing.service.SharedFile;
+import com.filesharing.service.TokenBucket;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.validation.Valid;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * REST Controller for file sharing operations
@@ -22,33 +34,91 @@ public class ShareController {
     @Autowired
     private ShareService shareService;
     
+    @Autowired
+    private DownloadService downloadService;
+    
+    @Autowired
+    private BundleService bundleService;
+    
+    @Autowired
+    private ShareRateLimiter shareRateLimiter;
+    
     /**
      * Generate share link for a file
-     * POST /api/share/{fileId}
+     * POST /api/share/{fileId}?maxBytesPerSecond=1048576
      */
     @PostMapping("/{fileId}")
     public ResponseEntity<ShareLinkResponse> generateShareLink(
             @PathVariable Long fileId,
+            @RequestParam(value = "maxBytesPerSecond", required = false) Long maxBytesPerSecond,
             Authentication authentication) {
         String userEmail = authentication.getName();
-        ShareLinkResponse response = shareService.generateShareLink(fileId, userEmail);
+        ShareLinkResponse response = shareService.generateShareLink(fileId, userEmail, maxBytesPerSecond);
         return ResponseEntity.ok(response);
     }
     
+    /**
+     * Generate share links for many files at once
+     * POST /api/share/bulk
+     */
+    @PostMapping("/bulk")
+    public ResponseEntity<List<ShareLinkResponse>> generateShareLinks(
+            @Valid @RequestBody BulkShareRequest bulkShareRequest,
+            Authentication authentication) {
+        String userEmail = authentication.getName();
+        List<ShareLinkResponse> responses = shareService.generateShareLinks(bulkShareRequest.getLinks(), userEmail);
+        return ResponseEntity.ok(responses);
+    }
+    
+    /**
+     * Revoke a share link
+     * DELETE /api/share/{token}
+     */
+    @DeleteMapping("/{token}")
+    public ResponseEntity<Void> revokeShareLink(
+            @PathVariable String token,
+            Authentication authentication) {
+        String userEmail = authentication.getName();
+        shareService.revokeShareLink(token, userEmail);
+        return ResponseEntity.noContent().build();
+    }
+    
     /**
      * Download file using share token
      * GET /api/share/download/{token}
      * This endpoint is public - no authentication required
      */
     @GetMapping("/download/{token}")
-    public ResponseEntity<Resource> downloadFileByToken(@PathVariable String token) {
-        Resource resource = shareService.downloadFileByToken(token);
-        String filename = shareService.getFilenameByToken(token);
+    public void downloadFileByToken(
+            @PathVariable String token,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        shareRateLimiter.checkClient(request);
+        SharedFile sharedFile = shareService.getSharedFile(token);
+        shareRateLimiter.checkLink(token);
+        downloadService.serveFile(sharedFile.getFile(), token,
+                shareRateLimiter.bandwidthFor(token, sharedFile.getMaxBytesPerSecond()), request, response);
+    }
+    
+    /**
+     * Download the files behind several share links as one ZIP
+     * POST /api/share/download/bundle
+     * This endpoint is public - no authentication required
+     */
+    @PostMapping("/download/bundle")
+    public void downloadBundle(
+            @Valid @RequestBody ShareBundleRequest bundleRequest,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        shareRateLimiter.checkClient(request);
+        List<SharedFile> sharedFiles = shareService.getSharedFiles(bundleRequest.getTokens());
+        sharedFiles.forEach(sharedFile -> shareRateLimiter.checkLink(sharedFile.getToken()));
         
-        return ResponseEntity.ok()
-                .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                .header(HttpHeaders.CONTENT_DISPOSITION, 
-                        "attachment; filename=\"" + filename + "\"")
-                .body(resource);
+        // Paced as strictly as the most limited link, so bundling cannot get around a limit
+        TokenBucket bandwidth = shareRateLimiter.bandwidthFor(sharedFiles);
+        List<FileEntity> files = sharedFiles.stream().map(SharedFile::getFile).collect(Collectors.toList());
+        List<String> tokens = sharedFiles.stream().map(SharedFile::getToken).collect(Collectors.toList());
+        bundleService.writeZip(files, tokens, "shared-files.zip",
+                bandwidth != null ? new BandwidthShapedResponse(response, bandwidth) : response);
     }
 }
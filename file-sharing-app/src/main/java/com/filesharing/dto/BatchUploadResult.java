@@ -0,0 +1,20 @@
+package com.filesharing.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * DTO for the outcome of one file in a batch upload
+ * Carries the stored file's metadata on success and the reason otherwise
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BatchUploadResult {
+    
+    private String filename;
+    private boolean success;
+    private FileResponse file;
+    private String error;
+}
@@ -0,0 +1,35 @@
+package com.filesharing.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.util.List;
+
+/**
+ * DTO for the block signatures of a file's content
+ * Clients match their new version against these blocks and send a delta
+ * that copies the unchanged ones; etag goes back in If-Match.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BlockSignaturesResponse {
+    
+    private Long fileId;
+    private String etag;
+    private Long size;
+    private Integer blockSize;
+    private List<BlockSignature> blocks;
+    
+    /**
+     * Signature of one block: rolling checksum and MD5 in hex
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class BlockSignature {
+        
+        private int weak;
+        private String strong;
+    }
+}
@@ -0,0 +1,46 @@
+package com.filesharing.dto;
+
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Size;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.util.List;
+
+/**
+ * DTO for generating share links to many of the user's files at once
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkShareRequest {
+    
+    @NotEmpty(message = "At least one link is required")
+    @Size(max = 5000, message = "At most 5000 links can be generated at once")
+    private List<@Valid @NotNull Link> links;
+    
+    /**
+     * One link to generate
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Link {
+        
+        @NotNull(message = "File ID is required")
+        private Long fileId;
+        
+        // Hours until the link expires; 24 if not given
+        @Min(value = 1, message = "Expiry must be at least 1 hour")
+        @Max(value = 8760, message = "Expiry can be at most 8760 hours")
+        private Integer expiryHours;
+        
+        // Bandwidth shared by all downloads of the link; the server default if not given
+        @Min(value = 1024, message = "Bandwidth limit must be at least 1024 bytes per second")
+        private Long maxBytesPerSecond;
+    }
+}
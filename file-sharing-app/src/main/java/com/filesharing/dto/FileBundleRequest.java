@@ -0,0 +1,21 @@
+package com.filesharing.dto;
+
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Size;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.util.List;
+
+/**
+ * DTO for downloading several of the user's files as one ZIP
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FileBundleRequest {
+    
+    @NotEmpty(message = "At least one file ID is required")
+    @Size(max = 500, message = "At most 500 files can be bundled")
+    private List<Long> fileIds;
+}
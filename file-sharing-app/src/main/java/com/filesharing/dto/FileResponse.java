@@ -1,5 +1,6 @@
 package com.filesharing.dto;
 
+import com.filesharing.entity.ProcessingStatus;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -18,4 +19,8 @@ public class FileResponse {
     private String fileType;
     private Long size;
     private LocalDateTime uploadTime;
+    private String mimeType;
+    private ProcessingStatus processingStatus;
+    private long downloadCount;
+    private long downloadBytes;
 }
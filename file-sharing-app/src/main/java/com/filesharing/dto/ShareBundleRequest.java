@@ -0,0 +1,21 @@
+package com.filesharing.dto;
+
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Size;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.util.List;
+
+/**
+ * DTO for downloading the files behind several share links as one ZIP
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ShareBundleRequest {
+    
+    @NotEmpty(message = "At least one share token is required")
+    @Size(max = 500, message = "At most 500 files can be bundled")
+    private List<String> tokens;
+}
@@ -0,0 +1,25 @@
+package com.filesharing.dto;
+
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Positive;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * DTO for starting a chunked upload
+ * Declares the file name and total size up front
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UploadSessionRequest {
+    
+    @NotBlank(message = "Filename is required")
+    private String filename;
+    
+    @NotNull(message = "Size is required")
+    @Positive(message = "Size must be positive")
+    private Long size;
+}
@@ -0,0 +1,24 @@
+package com.filesharing.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * DTO for chunked upload progress
+ * committedOffset is the length of the contiguous prefix received so far,
+ * which is where a client resumes a sequential upload
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UploadSessionResponse {
+    
+    private String uploadId;
+    private String filename;
+    private Long size;
+    private Long chunkSize;
+    private Long committedOffset;
+    private Long receivedBytes;
+    private boolean complete;
+}
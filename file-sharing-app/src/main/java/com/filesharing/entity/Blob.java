@@ -0,0 +1,39 @@
+package com.filesharing.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.time.LocalDateTime;
+
+/**
+ * Blob entity represents stored file content, addressed by its SHA-256 digest
+ * Identical uploads share one blob; the reference count tracks how many
+ * file records point at it so the bytes are removed only with the last one
+ */
+@Entity
+@Table(name = "blobs")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class Blob {
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @Column(nullable = false, unique = true, length = 64)
+    private String contentHash;
+    
+    @Column(nullable = false)
+    private Long size;
+    
+    // Encoding applied at rest, e.g. gzip; null when stored as uploaded
+    private String contentEncoding;
+    
+    @Column(nullable = false)
+    private Long refCount;
+    
+    @Column(nullable = false)
+    private LocalDateTime createdTime;
+}
@@ -34,6 +34,37 @@ public class FileEntity {
     @Column(nullable = false)
     private String filePath;
     
+    // SHA-256 of the content; null for files stored before content addressing
+    @Column(length = 64)
+    private String contentHash;
+    
+    // Strong validator sent as the ETag, the content's SHA-256
+    @Column(length = 64)
+    private String etag;
+    
+    // Encoding of the stored bytes, copied from the blob; null when stored as uploaded
+    private String contentEncoding;
+    
+    // Media type sniffed from the content by the processing pipeline
+    private String mimeType;
+    
+    @Enumerated(EnumType.STRING)
+    @Column(length = 20)
+    private ProcessingStatus processingStatus;
+    
+    // When the node processing the file claimed it; the claim lapses after the lease timeout
+    private LocalDateTime processingStarted;
+    
+    // Set by the reconciler when the stored content cannot be found
+    private LocalDateTime missingSince;
+    
+    // Written only by the download counter flush, never through JPA
+    @Column(nullable = false, insertable = false, updatable = false, columnDefinition = "BIGINT NOT NULL DEFAULT 0")
+    private long downloadCount;
+    
+    @Column(nullable = false, insertable = false, updatable = false, columnDefinition = "BIGINT NOT NULL DEFAULT 0")
+    private long downloadBytes;
+    
     @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "uploaded_by", nullable = false)
     private User uploadedBy;
@@ -0,0 +1,19 @@
+package com.filesharing.entity;
+
+/**
+ * Progress of a file through the post-upload processing pipeline
+ */
+public enum ProcessingStatus {
+    
+    // Stored and waiting for a processing slot
+    PENDING,
+    
+    // Running through the processing stages
+    PROCESSING,
+    
+    // All stages finished
+    READY,
+    
+    // A stage failed, e.g. the stored bytes did not match their hash
+    FAILED
+}
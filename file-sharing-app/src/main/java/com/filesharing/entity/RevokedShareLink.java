@@ -0,0 +1,34 @@
+package com.filesharing.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.time.LocalDateTime;
+
+/**
+ * RevokedShareLink entity records a signed share link revoked before its expiry
+ * Signed links are not stored when issued, so only revocations are kept,
+ * and only until the link would have expired anyway
+ */
+@Entity
+@Table(name = "revoked_share_links")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RevokedShareLink {
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    // Random ID carried in the signed link
+    @Column(nullable = false, unique = true, length = 32)
+    private String linkId;
+    
+    @Column(nullable = false)
+    private LocalDateTime expiryTime;
+    
+    @Column(nullable = false)
+    private LocalDateTime revokedTime;
+}
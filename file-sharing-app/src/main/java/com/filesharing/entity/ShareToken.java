@@ -34,4 +34,14 @@ public class ShareToken {
     
     @Column(nullable = false)
     private LocalDateTime createdTime;
+    
+    // Bandwidth limit shared by all downloads of the link; null for the default
+    private Long maxBytesPerSecond;
+    
+    // Written only by the download counter flush, never through JPA
+    @Column(nullable = false, insertable = false, updatable = false, columnDefinition = "BIGINT NOT NULL DEFAULT 0")
+    private long downloadCount;
+    
+    @Column(nullable = false, insertable = false, updatable = false, columnDefinition = "BIGINT NOT NULL DEFAULT 0")
+    private long downloadBytes;
 }
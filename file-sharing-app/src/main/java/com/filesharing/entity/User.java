@@ -32,4 +32,7 @@ public class User {
     
     @Column(nullable = false)
     private String role = "USER";
+    
+    // Bytes this user may store; null uses the configured default quota
+    private Long storageQuota;
 }
@@ -0,0 +1,29 @@
+package com.filesharing.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import java.time.LocalDateTime;
+
+/**
+ * UserUsage entity holds the total bytes stored by a user
+ * Written in batches from the quota service's in-memory counters, so
+ * enforcing a quota never has to sum a user's files on the upload path
+ */
+@Entity
+@Table(name = "user_usage")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserUsage {
+    
+    @Id
+    private Long userId;
+    
+    @Column(nullable = false)
+    private Long usedBytes;
+    
+    @Column(nullable = false)
+    private LocalDateTime updatedTime;
+}
@@ -0,0 +1,11 @@
+package com.filesharing.exception;
+
+/**
+ * Custom exception for uploads that would exceed a user's storage quota
+ */
+public class QuotaExceededException extends RuntimeException {
+    
+    public QuotaExceededException(String message) {
+        super(message);
+    }
+}
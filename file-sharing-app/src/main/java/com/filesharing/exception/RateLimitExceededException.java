@@ -0,0 +1,18 @@
+package com.filesharing.exception;
+
+/**
+ * Custom exception for share downloads over the request rate limit
+ */
+public class RateLimitExceededException extends RuntimeException {
+    
+    private final long retryAfterSeconds;
+    
+    public RateLimitExceededException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+    
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
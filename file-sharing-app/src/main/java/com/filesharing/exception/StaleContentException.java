@@ -0,0 +1,11 @@
+package com.filesharing.exception;
+
+/**
+ * Custom exception for updates based on content that has since changed
+ */
+public class StaleContentException extends RuntimeException {
+    
+    public StaleContentException(String message) {
+        super(message);
+    }
+}
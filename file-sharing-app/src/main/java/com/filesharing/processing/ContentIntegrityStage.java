@@ -0,0 +1,64 @@
+package com.filesharing.processing;
+
+import com.filesharing.entity.FileEntity;
+import com.filesharing.exception.FileStorageException;
+import com.filesharing.service.BlobService;
+import com.filesharing.service.CompressionService;
+import com.filesharing.storage.StorageBackend;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Processing stage that reads stored content back and checks it against its hash
+ * Catches truncated or corrupted writes in the storage backend, including
+ * the compression step, before the file is shared.
+ */
+@Component
+@Order(1)
+public class ContentIntegrityStage implements FileProcessingStage {
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    @Autowired
+    private StorageBackend storageBackend;
+    
+    @Autowired
+    private CompressionService compressionService;
+    
+    @Autowired
+    private BlobService blobService;
+    
+    @Override
+    public String getName() {
+        return "integrity";
+    }
+    
+    @Override
+    public boolean supports(FileEntity file) {
+        // Files stored before content addressing have no hash to check against
+        return file.getContentHash() != null;
+    }
+    
+    @Override
+    public void process(FileEntity file) throws IOException {
+        MessageDigest digest = blobService.newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = compressionService.decode(
+                storageBackend.get(file.getFilePath()), file.getContentEncoding())) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        
+        String actual = blobService.toHex(digest);
+        if (!actual.equals(file.getContentHash())) {
+            throw new FileStorageException("Stored content of file " + file.getId()
+                    + " does not match its hash: expected " + file.getContentHash() + ", got " + actual);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.filesharing.processing;
+
+import com.filesharing.entity.FileEntity;
+import java.io.IOException;
+
+/**
+ * One step of the post-upload processing pipeline
+ * Stages run in @Order order after the upload response has been sent.
+ * A stage may record results on the entity it is given; the pipeline
+ * persists the processing columns once every stage has run.
+ */
+public interface FileProcessingStage {
+    
+    /**
+     * Short name used in metrics and logs
+     */
+    String getName();
+    
+    /**
+     * Whether this stage applies to the file; unsupported files skip it
+     */
+    default boolean supports(FileEntity file) {
+        return true;
+    }
+    
+    /**
+     * Process a stored file
+     * Throwing marks the file as failed and stops the remaining stages.
+     */
+    void process(FileEntity file) throws IOException;
+}
@@ -0,0 +1,112 @@
+package com.filesharing.processing;
+
+import com.filesharing.entity.FileEntity;
+import com.filesharing.service.CompressionService;
+import com.filesharing.storage.StorageBackend;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Processing stage that detects the media type from the content's leading bytes
+ * The extension is only what the client claimed; a mismatch is logged and the
+ * sniffed type is recorded on the file.
+ */
+@Component
+@Order(2)
+public class MimeSniffingStage implements FileProcessingStage {
+    
+    private static final Logger logger = LoggerFactory.getLogger(MimeSniffingStage.class);
+    
+    private static final int SNIFF_LENGTH = 512;
+    
+    private static final byte[] PDF_MAGIC = {'%', 'P', 'D', 'F', '-'};
+    private static final byte[] PNG_MAGIC = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] JPEG_MAGIC = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF};
+    
+    public static final String TEXT_PLAIN = "text/plain";
+    public static final String APPLICATION_PDF = "application/pdf";
+    public static final String IMAGE_PNG = "image/png";
+    public static final String IMAGE_JPEG = "image/jpeg";
+    public static final String OCTET_STREAM = "application/octet-stream";
+    
+    // Media type each allowed extension is expected to carry
+    private static final Map<String, String> EXPECTED_TYPES = Map.of(
+            "txt", TEXT_PLAIN,
+            "pdf", APPLICATION_PDF,
+            "png", IMAGE_PNG,
+            "jpg", IMAGE_JPEG
+    );
+    
+    @Autowired
+    private StorageBackend storageBackend;
+    
+    @Autowired
+    private CompressionService compressionService;
+    
+    @Override
+    public String getName() {
+        return "mime";
+    }
+    
+    @Override
+    public void process(FileEntity file) throws IOException {
+        // Encoded content has to be decoded from the start, so only plain content is read as a range
+        InputStream stored = file.getContentEncoding() == null
+                ? storageBackend.getRange(file.getFilePath(), 0, Math.min(SNIFF_LENGTH, file.getSize()))
+                : storageBackend.get(file.getFilePath());
+        byte[] head;
+        try (InputStream in = compressionService.decode(stored, file.getContentEncoding())) {
+            head = in.readNBytes(SNIFF_LENGTH);
+        }
+        
+        String mimeType = sniff(head);
+        String expected = EXPECTED_TYPES.get(file.getFileType().toLowerCase());
+        if (!mimeType.equals(expected)) {
+            logger.warn("File {} is named .{} but its content looks like {}", file.getId(), file.getFileType(), mimeType);
+        }
+        file.setMimeType(mimeType);
+    }
+    
+    /**
+     * Detect a media type from magic numbers, falling back to a text heuristic
+     */
+    static String sniff(byte[] head) {
+        if (startsWith(head, PDF_MAGIC)) {
+            return APPLICATION_PDF;
+        }
+        if (startsWith(head, PNG_MAGIC)) {
+            return IMAGE_PNG;
+        }
+        if (startsWith(head, JPEG_MAGIC)) {
+            return IMAGE_JPEG;
+        }
+        return looksLikeText(head) ? TEXT_PLAIN : OCTET_STREAM;
+    }
+    
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        return data.length >= prefix.length && Arrays.equals(data, 0, prefix.length, prefix, 0, prefix.length);
+    }
+    
+    /**
+     * Treat content as text if it has no NUL bytes and few other control characters
+     */
+    private static boolean looksLikeText(byte[] head) {
+        int control = 0;
+        for (byte b : head) {
+            if (b == 0) {
+                return false;
+            }
+            if (b < 0x20 && b != '\n' && b != '\r' && b != '\t' && b != '\f') {
+                control++;
+            }
+        }
+        return control * 10 <= head.length;
+    }
+}
@@ -0,0 +1,39 @@
+package com.filesharing.processing;
+
+import com.filesharing.entity.FileEntity;
+import com.filesharing.service.ThumbnailService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import java.io.IOException;
+
+/**
+ * Processing stage that renders the dashboard thumbnail of each uploaded image
+ * The first listing after an upload then finds it in the cache.
+ */
+@Component
+@Order(3)
+public class ThumbnailStage implements FileProcessingStage {
+    
+    @Autowired
+    private ThumbnailService thumbnailService;
+    
+    @Value("${file.thumbnail.prewarm-width}")
+    private int prewarmWidth;
+    
+    @Override
+    public String getName() {
+        return "thumbnail";
+    }
+    
+    @Override
+    public boolean supports(FileEntity file) {
+        return thumbnailService.supports(file);
+    }
+    
+    @Override
+    public void process(FileEntity file) throws IOException {
+        thumbnailService.getThumbnail(file, prewarmWidth);
+    }
+}
@@ -0,0 +1,76 @@
+package com.filesharing.repository;
+
+import com.filesharing.entity.Blob;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Repository interface for Blob entity
+ * Provides database operations for content-addressed storage
+ */
+@Repository
+public interface BlobRepository extends JpaRepository<Blob, Long> {
+    
+    /**
+     * Find blob by content hash
+     * @param contentHash SHA-256 digest in hex
+     * @return Optional containing blob if found
+     */
+    Optional<Blob> findByContentHash(String contentHash);
+    
+    /**
+     * Find blobs by content hash
+     * @param contentHashes SHA-256 digests in hex
+     * @return The blobs that exist
+     */
+    List<Blob> findByContentHashIn(Collection<String> contentHashes);
+    
+    /**
+     * Find a blob by content hash and lock its row until the transaction ends
+     * Other nodes adding a reference to the blob wait for the lock.
+     * @param contentHash SHA-256 digest in hex
+     * @return Optional containing blob if found
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT b FROM Blob b WHERE b.contentHash = :contentHash")
+    Optional<Blob> findByContentHashForUpdate(@Param("contentHash") String contentHash);
+    
+    /**
+     * Add a reference to an existing blob
+     * @param contentHash SHA-256 digest in hex
+     * @return Number of rows updated, 0 if the blob does not exist
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE Blob b SET b.refCount = b.refCount + 1 WHERE b.contentHash = :contentHash")
+    int incrementRefCount(@Param("contentHash") String contentHash);
+    
+    /**
+     * Drop a reference to a blob
+     * @param contentHash SHA-256 digest in hex
+     * @return Number of rows updated
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE Blob b SET b.refCount = b.refCount - 1 WHERE b.contentHash = :contentHash AND b.refCount > 0")
+    int decrementRefCount(@Param("contentHash") String contentHash);
+    
+    /**
+     * Delete a blob row once nothing references it
+     * @param contentHash SHA-256 digest in hex
+     * @return Number of rows deleted
+     */
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM Blob b WHERE b.contentHash = :contentHash AND b.refCount = 0")
+    int deleteIfUnreferenced(@Param("contentHash") String contentHash);
+}
@@ -1,9 +1,17 @@
 package com.filesharing.repository;
 
 import com.filesharing.entity.FileEntity;
+import com.filesharing.entity.ProcessingStatus;
 import com.filesharing.entity.User;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -11,7 +19,7 @@ import java.util.List;
  * Provides database operations for file management
  */
 @Repository
-public interface FileRepository extends JpaRepository<FileEntity, Long> {
+public interface FileRepository extends JpaRepository<FileEntity, Long>, FileRepositoryCustom {
     
     /**
      * Find all files uploaded by a specific user
@@ -19,4 +27,137 @@ public interface FileRepository extends JpaRepository<FileEntity, Long> {
      * @return List of files uploaded by the user
      */
     List<FileEntity> findByUploadedBy(User user);
+    
+    /**
+     * Find the next files after an ID, in ID order
+     * @param id ID to resume after
+     * @param pageable Batch size
+     * @return Next batch of files
+     */
+    List<FileEntity> findByIdGreaterThanOrderByIdAsc(Long id, Pageable pageable);
+    
+    /**
+     * Point a file at new content, if its content is still the expected one
+     * Processing starts over, so the sniffed media type is cleared.
+     * @param expectedEtag ETag of the content the new version was built from
+     * @return Number of rows updated, 0 if the file is gone or its content changed
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE FileEntity f SET f.size = :size, f.filePath = :filePath, f.contentHash = :contentHash, "
+            + "f.etag = :contentHash, f.contentEncoding = :contentEncoding, f.mimeType = NULL, "
+            + "f.processingStatus = :status, f.uploadTime = :uploadTime, f.missingSince = NULL "
+            + "WHERE f.id = :id AND f.etag = :expectedEtag")
+    int replaceContent(@Param("id") Long id, @Param("expectedEtag") String expectedEtag,
+                       @Param("size") Long size, @Param("filePath") String filePath,
+                       @Param("contentHash") String contentHash, @Param("contentEncoding") String contentEncoding,
+                       @Param("status") ProcessingStatus status, @Param("uploadTime") LocalDateTime uploadTime);
+    
+    /**
+     * Total size of a user's files
+     * @param userId ID of the uploader
+     * @return Bytes stored, 0 if the user has no files
+     */
+    @Query("SELECT COALESCE(SUM(f.size), 0) FROM FileEntity f WHERE f.uploadedBy.id = :userId")
+    long sumSizeByUploader(@Param("userId") Long userId);
+    
+    /**
+     * Total size of the files of several users
+     * @param userIds IDs of the uploaders
+     * @return Pairs of user ID and bytes stored; users without files are left out
+     */
+    @Query("SELECT f.uploadedBy.id, SUM(f.size) FROM FileEntity f WHERE f.uploadedBy.id IN :userIds GROUP BY f.uploadedBy.id")
+    List<Object[]> sumSizeByUploaders(@Param("userIds") Collection<Long> userIds);
+    
+    /**
+     * Find which of the given files a user owns
+     * @param ids File IDs
+     * @param email Email of the user
+     * @return IDs of the files the user uploaded
+     */
+    @Query("SELECT f.id FROM FileEntity f WHERE f.id IN :ids AND f.uploadedBy.email = :email")
+    List<Long> findIdsOwnedBy(@Param("ids") Collection<Long> ids, @Param("email") String email);
+    
+    /**
+     * Check whether any file points at a storage key
+     * @param filePath Storage key
+     * @return true if a file references the key
+     */
+    boolean existsByFilePath(String filePath);
+    
+    /**
+     * Find which of the given storage keys are referenced by files
+     * @param filePaths Storage keys
+     * @return The referenced keys
+     */
+    @Query("SELECT DISTINCT f.filePath FROM FileEntity f WHERE f.filePath IN :filePaths")
+    List<String> findFilePathsIn(@Param("filePaths") Collection<String> filePaths);
+    
+    /**
+     * Flag files whose stored content is missing
+     * @return Number of rows newly flagged
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE FileEntity f SET f.missingSince = :time WHERE f.id IN :ids AND f.missingSince IS NULL")
+    int markMissing(@Param("ids") Collection<Long> ids, @Param("time") LocalDateTime time);
+    
+    /**
+     * Clear the missing flag of files whose content was found again
+     * @return Number of rows updated
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE FileEntity f SET f.missingSince = NULL WHERE f.id IN :ids")
+    int clearMissing(@Param("ids") Collection<Long> ids);
+    
+    /**
+     * Find files that still need post-upload processing, in ID order
+     * Rows from before the pipeline existed have no status and are included;
+     * files being processed are included only once their lease has expired.
+     * @param staleBefore Processing started before this is presumed abandoned
+     * @param afterId Only files with a greater ID are returned, to page past files already queued
+     * @param pageable Batch size
+     * @return Files to (re)process
+     */
+    @Query("SELECT f FROM FileEntity f WHERE f.id > :afterId AND (f.processingStatus IS NULL "
+            + "OR f.processingStatus = com.filesharing.entity.ProcessingStatus.PENDING "
+            + "OR (f.processingStatus = com.filesharing.entity.ProcessingStatus.PROCESSING "
+            + "AND (f.processingStarted IS NULL OR f.processingStarted < :staleBefore))) ORDER BY f.id")
+    List<FileEntity> findUnprocessed(@Param("staleBefore") LocalDateTime staleBefore, @Param("afterId") Long afterId,
+                                     Pageable pageable);
+    
+    /**
+     * Claim a file for processing on this node
+     * Succeeds only if no other node holds an unexpired claim, so each file
+     * is processed by one node at a time even with several running the sweep,
+     * and only while the file still has the content that was queued.
+     * @param contentHash Hash of the content to be processed
+     * @param now Start of the claim's lease
+     * @param staleBefore Claims started before this have expired and may be taken over
+     * @return Number of rows updated, 0 if the file is claimed elsewhere, has other content now
+     *         or no longer exists
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE FileEntity f SET f.processingStatus = com.filesharing.entity.ProcessingStatus.PROCESSING, "
+            + "f.processingStarted = :now WHERE f.id = :id AND (f.processingStatus IS NULL "
+            + "OR f.processingStatus = com.filesharing.entity.ProcessingStatus.PENDING "
+            + "OR (f.processingStatus = com.filesharing.entity.ProcessingStatus.PROCESSING "
+            + "AND (f.processingStarted IS NULL OR f.processingStarted < :staleBefore))) "
+            + "AND (f.contentHash = :contentHash OR (:contentHash IS NULL AND f.contentHash IS NULL))")
+    int claimForProcessing(@Param("id") Long id, @Param("contentHash") String contentHash,
+                           @Param("now") LocalDateTime now, @Param("staleBefore") LocalDateTime staleBefore);
+    
+    /**
+     * Record the outcome of post-upload processing, unless the content was replaced meanwhile
+     * @param contentHash Hash of the content that was processed
+     * @return Number of rows updated, 0 if the file no longer exists or has other content now
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE FileEntity f SET f.processingStatus = :status, f.mimeType = :mimeType WHERE f.id = :id "
+            + "AND (f.contentHash = :contentHash OR (:contentHash IS NULL AND f.contentHash IS NULL))")
+    int updateProcessingResult(@Param("id") Long id, @Param("contentHash") String contentHash,
+                               @Param("status") ProcessingStatus status, @Param("mimeType") String mimeType);
 }
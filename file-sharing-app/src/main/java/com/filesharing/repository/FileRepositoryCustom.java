@@ -0,0 +1,24 @@
+package com.filesharing.repository;
+
+import com.filesharing.entity.FileEntity;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Custom operations for FileEntity that bypass the JPA session
+ */
+public interface FileRepositoryCustom {
+    
+    /**
+     * Insert new files in a single JDBC batch and assign their generated IDs
+     * IDENTITY keys keep Hibernate from batching inserts, so this goes to JDBC directly.
+     * @param files Unsaved files; their IDs are set on return
+     */
+    void insertAll(List<FileEntity> files);
+    
+    /**
+     * Add to the download counters of many files in a single JDBC batch
+     * @param counts Downloads and bytes to add, by file ID; deleted files are skipped
+     */
+    void addDownloads(Map<Long, long[]> counts);
+}
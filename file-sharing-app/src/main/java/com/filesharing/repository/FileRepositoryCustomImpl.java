@@ -0,0 +1,83 @@
+package com.filesharing.repository;
+
+import com.filesharing.entity.FileEntity;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Transactional;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JDBC implementation of the custom FileEntity operations
+ */
+public class FileRepositoryCustomImpl implements FileRepositoryCustom {
+    
+    private static final String INSERT_SQL = "INSERT INTO files (filename, file_type, size, file_path, "
+            + "content_hash, etag, content_encoding, mime_type, processing_status, uploaded_by, upload_time) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    
+    private static final String ADD_DOWNLOADS_SQL = "UPDATE files "
+            + "SET download_count = download_count + ?, download_bytes = download_bytes + ? WHERE id = ?";
+    
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    @Override
+    @Transactional
+    public void insertAll(List<FileEntity> files) {
+        if (files.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_SQL, Statement.RETURN_GENERATED_KEYS)) {
+                for (FileEntity file : files) {
+                    statement.setString(1, file.getFilename());
+                    statement.setString(2, file.getFileType());
+                    statement.setLong(3, file.getSize());
+                    statement.setString(4, file.getFilePath());
+                    statement.setString(5, file.getContentHash());
+                    statement.setString(6, file.getEtag());
+                    statement.setString(7, file.getContentEncoding());
+                    statement.setString(8, file.getMimeType());
+                    if (file.getProcessingStatus() != null) {
+                        statement.setString(9, file.getProcessingStatus().name());
+                    } else {
+                        statement.setNull(9, Types.VARCHAR);
+                    }
+                    statement.setLong(10, file.getUploadedBy().getId());
+                    statement.setObject(11, file.getUploadTime());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                
+                try (ResultSet keys = statement.getGeneratedKeys()) {
+                    for (FileEntity file : files) {
+                        if (!keys.next()) {
+                            throw new DataRetrievalFailureException("Missing generated key for " + file.getFilename());
+                        }
+                        file.setId(keys.getLong(1));
+                    }
+                }
+            }
+            return null;
+        });
+    }
+    
+    @Override
+    @Transactional
+    public void addDownloads(Map<Long, long[]> counts) {
+        if (counts.isEmpty()) {
+            return;
+        }
+        List<Object[]> rows = counts.entrySet().stream()
+                .map(entry -> new Object[] {entry.getValue()[0], entry.getValue()[1], entry.getKey()})
+                .toList();
+        jdbcTemplate.batchUpdate(ADD_DOWNLOADS_SQL, rows);
+    }
+}
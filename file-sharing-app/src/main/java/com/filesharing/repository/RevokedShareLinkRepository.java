@@ -0,0 +1,43 @@
+package com.filesharing.repository;
+
+import com.filesharing.entity.RevokedShareLink;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Repository interface for RevokedShareLink entity
+ * Provides database operations for signed link revocation
+ */
+@Repository
+public interface RevokedShareLinkRepository extends JpaRepository<RevokedShareLink, Long> {
+    
+    /**
+     * Find revocations of links that have not expired yet
+     * @param time Current time
+     * @return Revocations still in force
+     */
+    List<RevokedShareLink> findByExpiryTimeAfter(LocalDateTime time);
+    
+    /**
+     * Check whether a link has been revoked
+     * @param linkId Random ID carried in the signed link
+     * @return true if the link is revoked
+     */
+    boolean existsByLinkId(String linkId);
+    
+    /**
+     * Delete revocations of links that have expired
+     * @param cutoff Revocations of links expiring before this are deleted
+     * @return Number of rows deleted
+     */
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM RevokedShareLink r WHERE r.expiryTime < :cutoff")
+    int deleteByExpiryTimeBefore(@Param("cutoff") LocalDateTime cutoff);
+}
@@ -1,8 +1,16 @@
 package com.filesharing.repository;
 
+import com.filesharing.entity.FileEntity;
 import com.filesharing.entity.ShareToken;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -10,7 +18,7 @@ import java.util.Optional;
  * Provides database operations for share token management
  */
 @Repository
-public interface ShareTokenRepository extends JpaRepository<ShareToken, Long> {
+public interface ShareTokenRepository extends JpaRepository<ShareToken, Long>, ShareTokenRepositoryCustom {
     
     /**
      * Find share token by token string
@@ -18,4 +26,46 @@ public interface ShareTokenRepository extends JpaRepository<ShareToken, Long> {
      * @return Optional containing ShareToken if found
      */
     Optional<ShareToken> findByToken(String token);
+    
+    /**
+     * Find share token by token string, loading its file in the same query
+     * @param token The token string
+     * @return Optional containing ShareToken if found
+     */
+    @Query("SELECT s FROM ShareToken s JOIN FETCH s.file WHERE s.token = :token")
+    Optional<ShareToken> findByTokenWithFile(@Param("token") String token);
+    
+    /**
+     * Find share tokens by token string
+     * @param tokens The token strings
+     * @return Share tokens that exist, in no particular order
+     */
+    List<ShareToken> findByTokenIn(Collection<String> tokens);
+    
+    /**
+     * Delete one batch of expired share tokens, oldest first
+     * @param cutoff Tokens expiring before this are deleted
+     * @param limit Most rows to delete
+     * @return Number of rows deleted
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "DELETE FROM share_tokens WHERE expiry_time < :cutoff ORDER BY expiry_time LIMIT :limit",
+            nativeQuery = true)
+    int deleteExpired(@Param("cutoff") LocalDateTime cutoff, @Param("limit") int limit);
+    
+    /**
+     * Find the earliest expiry time of any stored share token
+     * @return The earliest expiry time, or null if there are no tokens
+     */
+    @Query("SELECT MIN(s.expiryTime) FROM ShareToken s")
+    LocalDateTime findOldestExpiryTime();
+    
+    /**
+     * Delete all share tokens for a file
+     * @param file The file being deleted
+     */
+    @Modifying
+    @Transactional
+    void deleteByFile(FileEntity file);
 }
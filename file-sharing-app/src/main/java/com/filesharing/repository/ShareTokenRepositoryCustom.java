@@ -0,0 +1,24 @@
+package com.filesharing.repository;
+
+import com.filesharing.entity.ShareToken;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Custom operations for ShareToken that bypass the JPA session
+ */
+public interface ShareTokenRepositoryCustom {
+    
+    /**
+     * Insert new share tokens in a single JDBC batch
+     * Only the file's ID is read, so the file may be an uninitialized reference.
+     * @param shareTokens Unsaved share tokens
+     */
+    void insertAll(List<ShareToken> shareTokens);
+    
+    /**
+     * Add to the download counters of many share tokens in a single JDBC batch
+     * @param counts Downloads and bytes to add, by token; deleted tokens are skipped
+     */
+    void addDownloads(Map<String, long[]> counts);
+}
@@ -0,0 +1,48 @@
+package com.filesharing.repository;
+
+import com.filesharing.entity.ShareToken;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Transactional;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JDBC implementation of the custom ShareToken operations
+ */
+public class ShareTokenRepositoryCustomImpl implements ShareTokenRepositoryCustom {
+    
+    private static final String INSERT_SQL = "INSERT INTO share_tokens (token, file_id, expiry_time, created_time, "
+            + "max_bytes_per_second) VALUES (?, ?, ?, ?, ?)";
+    
+    private static final String ADD_DOWNLOADS_SQL = "UPDATE share_tokens "
+            + "SET download_count = download_count + ?, download_bytes = download_bytes + ? WHERE token = ?";
+    
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    @Override
+    @Transactional
+    public void insertAll(List<ShareToken> shareTokens) {
+        if (shareTokens.isEmpty()) {
+            return;
+        }
+        List<Object[]> rows = shareTokens.stream()
+                .map(shareToken -> new Object[] {shareToken.getToken(), shareToken.getFile().getId(),
+                        shareToken.getExpiryTime(), shareToken.getCreatedTime(), shareToken.getMaxBytesPerSecond()})
+                .toList();
+        jdbcTemplate.batchUpdate(INSERT_SQL, rows);
+    }
+    
+    @Override
+    @Transactional
+    public void addDownloads(Map<String, long[]> counts) {
+        if (counts.isEmpty()) {
+            return;
+        }
+        List<Object[]> rows = counts.entrySet().stream()
+                .map(entry -> new Object[] {entry.getValue()[0], entry.getValue()[1], entry.getKey()})
+                .toList();
+        jdbcTemplate.batchUpdate(ADD_DOWNLOADS_SQL, rows);
+    }
+}
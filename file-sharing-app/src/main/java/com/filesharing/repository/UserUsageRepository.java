@@ -0,0 +1,13 @@
+package com.filesharing.repository;
+
+import com.filesharing.entity.UserUsage;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Repository interface for UserUsage entity
+ * Provides database operations for storage quota accounting
+ */
+@Repository
+public interface UserUsageRepository extends JpaRepository<UserUsage, Long>, UserUsageRepositoryCustom {
+}
@@ -0,0 +1,15 @@
+package com.filesharing.repository;
+
+import java.util.Map;
+
+/**
+ * Custom operations for UserUsage that bypass the JPA session
+ */
+public interface UserUsageRepositoryCustom {
+    
+    /**
+     * Insert or overwrite the usage of many users in a single JDBC batch
+     * @param usedBytes Bytes stored, by user ID
+     */
+    void saveAllUsage(Map<Long, Long> usedBytes);
+}
@@ -0,0 +1,34 @@
+package com.filesharing.repository;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Transactional;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JDBC implementation of the custom UserUsage operations
+ */
+public class UserUsageRepositoryCustomImpl implements UserUsageRepositoryCustom {
+    
+    private static final String UPSERT_SQL = "INSERT INTO user_usage (user_id, used_bytes, updated_time) "
+            + "VALUES (?, ?, ?) "
+            + "ON DUPLICATE KEY UPDATE used_bytes = VALUES(used_bytes), updated_time = VALUES(updated_time)";
+    
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    @Override
+    @Transactional
+    public void saveAllUsage(Map<Long, Long> usedBytes) {
+        if (usedBytes.isEmpty()) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        List<Object[]> rows = usedBytes.entrySet().stream()
+                .map(entry -> new Object[] {entry.getKey(), entry.getValue(), now})
+                .toList();
+        jdbcTemplate.batchUpdate(UPSERT_SQL, rows);
+    }
+}
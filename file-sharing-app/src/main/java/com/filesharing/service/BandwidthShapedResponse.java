@@ -0,0 +1,105 @@
+package com.filesharing.service;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response whose body is paced by a shared bucket of bytes
+ * Writes are split into small chunks, and each chunk waits until the bucket
+ * can pay for it, so every download drawing on one bucket together stays
+ * within its rate. Waiting holds the request thread, like a slow client would.
+ */
+public class BandwidthShapedResponse extends HttpServletResponseWrapper {
+    
+    private static final int CHUNK_SIZE = 16 * 1024;
+    
+    private final TokenBucket bucket;
+    private ShapedOutputStream outputStream;
+    
+    public BandwidthShapedResponse(HttpServletResponse response, TokenBucket bucket) {
+        super(response);
+        this.bucket = bucket;
+    }
+    
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            outputStream = new ShapedOutputStream(super.getOutputStream());
+        }
+        return outputStream;
+    }
+    
+    /**
+     * Output stream that takes bytes from the bucket before writing them
+     */
+    private class ShapedOutputStream extends ServletOutputStream {
+        
+        private final ServletOutputStream delegate;
+        
+        ShapedOutputStream(ServletOutputStream delegate) {
+            this.delegate = delegate;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            pace(1);
+            delegate.write(b);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int chunk = Math.min(len, CHUNK_SIZE);
+                pace(chunk);
+                delegate.write(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+        
+        @Override
+        public boolean isReady() {
+            return delegate.isReady();
+        }
+        
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            delegate.setWriteListener(writeListener);
+        }
+        
+        private void pace(int bytes) throws IOException {
+            long wait;
+            // The bucket refuses to go deeper into debt while many downloads share it
+            while ((wait = bucket.acquire(bytes)) < 0) {
+                sleep(bucket.nanosUntilAvailable(bytes));
+            }
+            sleep(wait);
+        }
+        
+        private void sleep(long nanos) throws IOException {
+            if (nanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(nanos);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Download interrupted");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.filesharing.service;
+
+import com.filesharing.entity.Blob;
+import com.filesharing.repository.BlobRepository;
+import com.filesharing.storage.HotBlobCache;
+import com.filesharing.storage.ObjectGuard;
+import com.filesharing.storage.StorageBackend;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.HexFormat;
+import java.util.regex.Pattern;
+
+/**
+ * Service class for content-addressed blob storage
+ * Stores each distinct content once under its SHA-256 digest and counts
+ * references from file records, so repeated uploads cost no extra disk
+ * writes beyond the staging copy and deletes only remove unreferenced bytes.
+ * The last release deletes the bytes while holding the blob's row lock, so
+ * no node can re-reference or re-store the same content until they are gone.
+ */
+@Service
+public class BlobService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(BlobService.class);
+    
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+    private static final int LOCK_STRIPES = 64;
+    private static final String GZIP_KEY_SUFFIX = ".gz";
+    private static final Pattern BLOB_HASH = Pattern.compile("[0-9a-f]{64}");
+    
+    @Autowired
+    private BlobRepository blobRepository;
+    
+    @Autowired
+    private StorageBackend storageBackend;
+    
+    @Autowired
+    private CompressionService compressionService;
+    
+    @Autowired
+    private HotBlobCache hotBlobCache;
+    
+    // Serializes store and release of the same digest, so a release deleting
+    // the last copy cannot race a new upload of identical content
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    
+    public BlobService() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+    
+    /**
+     * Store a fully written temporary file as a blob
+     * If the content is already stored the temporary file is discarded and
+     * the existing blob gains a reference; otherwise it is compressed where
+     * worthwhile and handed to the storage backend.
+     * @return The blob now holding the content
+     */
+    public Blob storeBlob(Path tempLocation, String contentHash, long size, String fileType) throws IOException {
+        // Compress outside the lock; content already stored needs no work at all
+        String contentEncoding = null;
+        boolean compressed = false;
+        if (blobRepository.findByContentHash(contentHash).isEmpty()) {
+            contentEncoding = compressionService.compressIfWorthwhile(tempLocation, fileType);
+            compressed = true;
+        }
+        
+        synchronized (lockFor(contentHash)) {
+            if (blobRepository.incrementRefCount(contentHash) > 0) {
+                Files.deleteIfExists(tempLocation);
+                return findBlob(contentHash);
+            }
+            if (!compressed) {
+                // The blob was released since the check above
+                contentEncoding = compressionService.compressIfWorthwhile(tempLocation, fileType);
+            }
+            
+            Blob blob = new Blob();
+            blob.setContentHash(contentHash);
+            blob.setSize(size);
+            blob.setContentEncoding(contentEncoding);
+            blob.setRefCount(1L);
+            blob.setCreatedTime(LocalDateTime.now());
+            
+            String storageKey = getStorageKey(blob);
+            storageBackend.put(storageKey, tempLocation);
+            
+            try {
+                return blobRepository.saveAndFlush(blob);
+            } catch (DataIntegrityViolationException ex) {
+                // Another node stored the same content first; keep its copy
+                blobRepository.incrementRefCount(contentHash);
+                Blob existing = findBlob(contentHash);
+                if (!getStorageKey(existing).equals(storageKey)) {
+                    storageBackend.delete(storageKey);
+                }
+                return existing;
+            }
+        }
+    }
+    
+    /**
+     * Drop one reference to a blob, deleting its bytes with the last reference
+     * Runs in one transaction: a store of the same content on another node
+     * blocks on the row lock until the bytes are deleted and the row is gone,
+     * then stores its own copy.
+     */
+    @Transactional
+    public void releaseBlob(String contentHash, String storageKey) {
+        synchronized (lockFor(contentHash)) {
+            if (blobRepository.findByContentHashForUpdate(contentHash).isEmpty()) {
+                return;
+            }
+            blobRepository.decrementRefCount(contentHash);
+            if (blobRepository.deleteIfUnreferenced(contentHash) > 0) {
+                hotBlobCache.invalidate(storageKey);
+                try {
+                    storageBackend.delete(storageKey);
+                } catch (IOException ex) {
+                    logger.warn("Could not delete blob {}", contentHash, ex);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Run a copy of a blob's stored bytes while no node can release it
+     * Holds the blob's row lock, as the last release does while it deletes
+     * the bytes, so a copy made here is never left behind by a release.
+     * Keys that do not name a blob, i.e. files stored before content
+     * addressing, are copied without a guard.
+     * @return false if the blob no longer exists and the copy did not run
+     */
+    @Transactional
+    public boolean whileReferenced(String storageKey, ObjectGuard.Copy copy) throws IOException {
+        String contentHash = getContentHash(storageKey);
+        if (!BLOB_HASH.matcher(contentHash).matches()) {
+            copy.run();
+            return true;
+        }
+        synchronized (lockFor(contentHash)) {
+            if (blobRepository.findByContentHashForUpdate(contentHash).isEmpty()) {
+                return false;
+            }
+            copy.run();
+            return true;
+        }
+    }
+    
+    /**
+     * Run an action on stored bytes while no blob points at them
+     * Holds the blob's row lock when a row for the digest exists but names a
+     * differently encoded key, so no upload can switch the row to this key
+     * meanwhile. With no row at all there is nothing to lock: an upload on
+     * another node stores its bytes before it saves its row, so callers that
+     * remove bytes must check for a reference again afterwards.
+     * @return false if a blob points at the key and the action did not run
+     */
+    @Transactional
+    public boolean whileUnreferenced(String storageKey, ObjectGuard.Copy action) throws IOException {
+        String contentHash = getContentHash(storageKey);
+        synchronized (lockFor(contentHash)) {
+            boolean referenced = blobRepository.findByContentHashForUpdate(contentHash)
+                    .map(this::getStorageKey)
+                    .filter(storageKey::equals)
+                    .isPresent();
+            if (referenced) {
+                return false;
+            }
+            action.run();
+            return true;
+        }
+    }
+    
+    /**
+     * Storage key for a blob
+     * Compressed blobs get a suffix so differently encoded copies never collide
+     */
+    public String getStorageKey(Blob blob) {
+        return CompressionService.GZIP.equals(blob.getContentEncoding())
+                ? blob.getContentHash() + GZIP_KEY_SUFFIX
+                : blob.getContentHash();
+    }
+    
+    /**
+     * Digest a blob storage key was derived from
+     */
+    public String getContentHash(String storageKey) {
+        return storageKey.endsWith(GZIP_KEY_SUFFIX)
+                ? storageKey.substring(0, storageKey.length() - GZIP_KEY_SUFFIX.length())
+                : storageKey;
+    }
+    
+    /**
+     * Create a digest for hashing content while it is copied
+     */
+    public MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(HASH_ALGORITHM + " is not available", ex);
+        }
+    }
+    
+    /**
+     * Hash a file that is already on disk
+     */
+    public String computeHash(Path path) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[HASH_BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest);
+    }
+    
+    /**
+     * Format a finished digest as lowercase hex
+     */
+    public String toHex(MessageDigest digest) {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+    
+    /**
+     * Load a blob that is known to exist
+     */
+    private Blob findBlob(String contentHash) {
+        return blobRepository.findByContentHash(contentHash)
+                .orElseThrow(() -> new IllegalStateException("Blob disappeared: " + contentHash));
+    }
+    
+    /**
+     * Pick the lock stripe for a digest
+     */
+    private Object lockFor(String contentHash) {
+        return locks[Math.floorMod(contentHash.hashCode(), LOCK_STRIPES)];
+    }
+}
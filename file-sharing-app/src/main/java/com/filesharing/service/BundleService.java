@@ -0,0 +1,117 @@
+package com.filesharing.service;
+
+import com.filesharing.entity.FileEntity;
+import com.filesharing.storage.StorageBackend;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.ZoneId;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Service class for downloading several files as one ZIP
+ * The archive is written straight to the response as each file is read from
+ * storage, so nothing is staged on disk and memory use does not depend on
+ * the number or size of the files.
+ */
+@Service
+public class BundleService {
+    
+    // Types that are already compressed; deflating them again only costs CPU
+    private static final Set<String> STORED_TYPES = Set.of("jpg", "png", "pdf");
+    
+    private static final String ZIP_CONTENT_TYPE = "application/zip";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    @Autowired
+    private StorageBackend storageBackend;
+    
+    @Autowired
+    private CompressionService compressionService;
+    
+    @Autowired
+    private DownloadStatsService downloadStatsService;
+    
+    /**
+     * Stream files as a ZIP download, counting a download of each
+     * @param shareTokens Share token each file was reached through, in the same
+     *                    order, or null for the owner's own files
+     * @param bundleName File name offered for the archive
+     */
+    public void writeZip(List<FileEntity> files, List<String> shareTokens, String bundleName,
+                         HttpServletResponse response) throws IOException {
+        response.setContentType(ZIP_CONTENT_TYPE);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + bundleName + "\"");
+        
+        ZipOutputStream zip = new ZipOutputStream(response.getOutputStream());
+        Set<String> usedNames = new HashSet<>();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        
+        for (int i = 0; i < files.size(); i++) {
+            FileEntity file = files.get(i);
+            ZipEntry entry = new ZipEntry(uniqueName(file.getFilename(), usedNames));
+            entry.setTime(file.getUploadTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            // Level 0 still deflates, so the CRC goes in a data descriptor after
+            // the data instead of needing a pre-pass over the file
+            zip.setLevel(isStored(file) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+            zip.putNextEntry(entry);
+            long sent = 0;
+            try (InputStream in = open(file)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    zip.write(buffer, 0, read);
+                    sent += read;
+                }
+            }
+            zip.closeEntry();
+            downloadStatsService.recordDownload(file.getId(), shareTokens != null ? shareTokens.get(i) : null,
+                    true, sent);
+        }
+        
+        // The container closes the response stream
+        zip.finish();
+    }
+    
+    /**
+     * Whether a file goes into the archive without compression
+     * Content that is gzipped at rest compressed well, so it is deflated instead.
+     */
+    private boolean isStored(FileEntity file) {
+        return STORED_TYPES.contains(file.getFileType().toLowerCase()) && file.getContentEncoding() == null;
+    }
+    
+    /**
+     * Open a file's original content
+     */
+    private InputStream open(FileEntity file) throws IOException {
+        return compressionService.decode(storageBackend.get(file.getFilePath()), file.getContentEncoding());
+    }
+    
+    /**
+     * Entry name for a file, numbered when several files share a name
+     */
+    private String uniqueName(String filename, Set<String> usedNames) {
+        // Entry names are paths inside the archive; keep every file at the top level
+        String name = filename.replace('\\', '_').replace('/', '_');
+        if (usedNames.add(name)) {
+            return name;
+        }
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; ; i++) {
+            String candidate = base + " (" + i + ")" + extension;
+            if (usedNames.add(candidate)) {
+                return candidate;
+            }
+        }
+    }
+}
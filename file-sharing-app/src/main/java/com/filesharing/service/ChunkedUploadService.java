@@ -0,0 +1,352 @@
+package com.filesharing.service;
+
+import com.filesharing.dto.FileResponse;
+import com.filesharing.dto.UploadSessionRequest;
+import com.filesharing.dto.UploadSessionResponse;
+import com.filesharing.entity.User;
+import com.filesharing.exception.FileStorageException;
+import com.filesharing.exception.ResourceNotFoundException;
+import com.filesharing.repository.UserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Service class for chunked, resumable uploads
+ * A session pre-allocates the target file, accepts fixed-size chunks at any
+ * offset and in any order, and creates the file record once every chunk is in.
+ * Chunks are written with positional FileChannel writes, so parallel chunk
+ * requests never contend on a shared stream position.
+ */
+@Service
+public class ChunkedUploadService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(ChunkedUploadService.class);
+    
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final Duration SESSION_IDLE_TIMEOUT = Duration.ofHours(24);
+    
+    @Autowired
+    private FileService fileService;
+    
+    @Autowired
+    private UserRepository userRepository;
+    
+    @Autowired
+    private QuotaService quotaService;
+    
+    @Value("${file.upload.chunk-size}")
+    private DataSize chunkSize;
+    
+    @Value("${file.upload.max-chunked-size}")
+    private DataSize maxChunkedSize;
+    
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    
+    /**
+     * Start a chunked upload
+     * Validates the declared file, reserves its quota and pre-allocates it on disk
+     */
+    public UploadSessionResponse createUpload(UploadSessionRequest request, String userEmail) {
+        User user = userRepository.findByEmail(userEmail)
+                .orElseThrow(() -> new ResourceNotFoundException("User not found"));
+        
+        String originalFilename = StringUtils.cleanPath(request.getFilename());
+        fileService.validateFileType(originalFilename);
+        
+        if (request.getSize() > maxChunkedSize.toBytes()) {
+            throw new FileStorageException("File size exceeds maximum limit of " + maxChunkedSize.toMegabytes() + "MB");
+        }
+        
+        // Held until the upload completes or is discarded
+        QuotaService.Reservation reservation = quotaService.reserve(user, request.getSize());
+        Path tempLocation = null;
+        FileChannel channel = null;
+        try {
+            tempLocation = fileService.createTempFile();
+            channel = FileChannel.open(tempLocation,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            
+            // Extend the file to its full length so any chunk can be written in place
+            channel.write(ByteBuffer.allocate(1), request.getSize() - 1);
+            
+            UploadSession session = new UploadSession(UUID.randomUUID().toString(), userEmail,
+                    originalFilename, request.getSize(), chunkSize.toBytes(), tempLocation, channel, reservation);
+            sessions.put(session.id, session);
+            
+            return mapToResponse(session);
+        } catch (IOException ex) {
+            reservation.cancel();
+            // Most likely the disk is full, so do not leave a partial file behind
+            cleanUp(tempLocation, channel, ex);
+            throw new FileStorageException("Could not start upload. Please try again!", ex);
+        }
+    }
+    
+    /**
+     * Close and delete the temporary file of an upload that could not start
+     */
+    private void cleanUp(Path tempLocation, FileChannel channel, IOException cause) {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            cause.addSuppressed(ex);
+        }
+        try {
+            if (tempLocation != null) {
+                Files.deleteIfExists(tempLocation);
+            }
+        } catch (IOException ex) {
+            cause.addSuppressed(ex);
+        }
+    }
+    
+    /**
+     * Write one chunk at the given offset
+     * Offsets must fall on a chunk boundary and the body must be exactly one chunk
+     * (or the remainder of the file for the last chunk). Re-sending a chunk is harmless.
+     * A session completed, aborted or purged meanwhile is reported as not found,
+     * including to writes already under way when its file was closed.
+     */
+    public UploadSessionResponse writeChunk(String uploadId, long offset, InputStream inputStream,
+                                            long contentLength, String userEmail) {
+        UploadSession session = getSession(uploadId, userEmail);
+        
+        if (offset < 0 || offset >= session.size || offset % session.chunkSize != 0) {
+            throw new FileStorageException("Chunk offset must be a multiple of " + session.chunkSize
+                    + " within the file size");
+        }
+        long expected = Math.min(session.chunkSize, session.size - offset);
+        if (contentLength >= 0 && contentLength != expected) {
+            throw new FileStorageException("Chunk at offset " + offset + " must be " + expected + " bytes");
+        }
+        if (session.isClosing()) {
+            throw new ResourceNotFoundException("Upload not found");
+        }
+        
+        try {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long position = offset;
+            long end = offset + expected;
+            int read;
+            while ((read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, end - position + 1))) != -1) {
+                if (position + read > end) {
+                    throw new FileStorageException("Chunk at offset " + offset + " must be " + expected + " bytes");
+                }
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    position += session.channel.write(chunk, position);
+                }
+            }
+            if (position != end) {
+                throw new FileStorageException("Chunk at offset " + offset + " is incomplete");
+            }
+        } catch (IOException ex) {
+            if (session.isClosing()) {
+                // The channel was closed under this write
+                throw new ResourceNotFoundException("Upload not found");
+            }
+            throw new FileStorageException("Could not store chunk. Please try again!", ex);
+        }
+        
+        if (!session.markReceived((int) (offset / session.chunkSize))) {
+            throw new ResourceNotFoundException("Upload not found");
+        }
+        return mapToResponse(session);
+    }
+    
+    /**
+     * Get the progress of a chunked upload
+     */
+    public UploadSessionResponse getUpload(String uploadId, String userEmail) {
+        return mapToResponse(getSession(uploadId, userEmail));
+    }
+    
+    /**
+     * Finish a chunked upload and create the file record
+     */
+    public FileResponse completeUpload(String uploadId, String userEmail) {
+        UploadSession session = getSession(uploadId, userEmail);
+        
+        if (!session.isComplete()) {
+            throw new FileStorageException("Upload is missing chunks; resume from offset " + session.committedOffset());
+        }
+        // Only one completion may win; later callers see the session as gone
+        if (!sessions.remove(uploadId, session)) {
+            throw new ResourceNotFoundException("Upload not found");
+        }
+        
+        User user = userRepository.findByEmail(userEmail)
+                .orElseThrow(() -> new ResourceNotFoundException("User not found"));
+        
+        session.markClosing();
+        try {
+            session.channel.force(true);
+            session.channel.close();
+            return fileService.commitFile(session.path, session.filename, session.size, user, session.reservation);
+        } catch (IOException ex) {
+            throw new FileStorageException("Could not store file. Please try again!", ex);
+        } finally {
+            discard(session);
+        }
+    }
+    
+    /**
+     * Abandon a chunked upload and delete its data
+     */
+    public void abortUpload(String uploadId, String userEmail) {
+        UploadSession session = getSession(uploadId, userEmail);
+        if (sessions.remove(uploadId, session)) {
+            discard(session);
+        }
+    }
+    
+    /**
+     * Remove sessions that have not received a chunk for a day
+     */
+    @Scheduled(fixedDelayString = "PT1H")
+    public void purgeIdleSessions() {
+        Instant cutoff = Instant.now().minus(SESSION_IDLE_TIMEOUT);
+        sessions.values().removeIf(session -> {
+            if (session.lastActivity.isBefore(cutoff)) {
+                logger.info("Discarding idle upload {}", session.id);
+                discard(session);
+                return true;
+            }
+            return false;
+        });
+    }
+    
+    /**
+     * Look up a session owned by the given user
+     */
+    private UploadSession getSession(String uploadId, String userEmail) {
+        UploadSession session = sessions.get(uploadId);
+        if (session == null || !session.userEmail.equals(userEmail)) {
+            throw new ResourceNotFoundException("Upload not found");
+        }
+        return session;
+    }
+    
+    /**
+     * Close and delete a session's temporary file
+     * Gives back its quota reservation unless the file was saved.
+     */
+    private void discard(UploadSession session) {
+        session.markClosing();
+        session.reservation.cancel();
+        try {
+            session.channel.close();
+            Files.deleteIfExists(session.path);
+        } catch (IOException ex) {
+            logger.warn("Could not delete temporary upload {}", session.path, ex);
+        }
+    }
+    
+    /**
+     * Map an upload session to its response DTO
+     */
+    private UploadSessionResponse mapToResponse(UploadSession session) {
+        return new UploadSessionResponse(
+            session.id,
+            session.filename,
+            session.size,
+            session.chunkSize,
+            session.committedOffset(),
+            session.receivedBytes(),
+            session.isComplete()
+        );
+    }
+    
+    /**
+     * In-progress chunked upload
+     * Tracks received chunks in a bitmap so chunks can arrive in any order.
+     * Once closing, the session is being completed or discarded and takes no more chunks.
+     */
+    private static class UploadSession {
+        
+        private final String id;
+        private final String userEmail;
+        private final String filename;
+        private final long size;
+        private final long chunkSize;
+        private final int chunkCount;
+        private final Path path;
+        private final FileChannel channel;
+        private final BitSet received;
+        private final QuotaService.Reservation reservation;
+        private volatile Instant lastActivity = Instant.now();
+        private boolean closing;
+        
+        UploadSession(String id, String userEmail, String filename, long size, long chunkSize,
+                      Path path, FileChannel channel, QuotaService.Reservation reservation) {
+            this.id = id;
+            this.userEmail = userEmail;
+            this.filename = filename;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+            this.path = path;
+            this.channel = channel;
+            this.received = new BitSet(chunkCount);
+            this.reservation = reservation;
+        }
+        
+        /**
+         * @return false if the session started closing, so the chunk may not have been kept
+         */
+        synchronized boolean markReceived(int chunk) {
+            if (closing) {
+                return false;
+            }
+            received.set(chunk);
+            lastActivity = Instant.now();
+            return true;
+        }
+        
+        synchronized void markClosing() {
+            closing = true;
+        }
+        
+        synchronized boolean isClosing() {
+            return closing;
+        }
+        
+        synchronized boolean isComplete() {
+            return received.cardinality() == chunkCount;
+        }
+        
+        synchronized long committedOffset() {
+            return Math.min(received.nextClearBit(0) * chunkSize, size);
+        }
+        
+        synchronized long receivedBytes() {
+            long bytes = received.cardinality() * chunkSize;
+            // The last chunk may be short
+            if (received.get(chunkCount - 1)) {
+                bytes -= chunkCount * chunkSize - size;
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.filesharing.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Service class for at-rest compression of stored content
+ * Compressible types are gzipped before they reach storage, so the stored
+ * bytes can be sent as-is with Content-Encoding: gzip. A sample of each file
+ * is compressed first and files that barely shrink are stored unchanged.
+ */
+@Service
+public class CompressionService {
+    
+    public static final String GZIP = "gzip";
+    
+    // Deflate level per file type; jpg and png are already compressed
+    private static final Map<String, Integer> LEVELS = Map.of(
+            "txt", Deflater.DEFAULT_COMPRESSION,
+            "pdf", Deflater.BEST_SPEED
+    );
+    
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    // Keep the compressed copy only if it is at most this fraction of the original
+    private static final double MAX_RATIO = 0.9;
+    
+    @Value("${file.compression.enabled}")
+    private boolean enabled;
+    
+    /**
+     * Compress a staged file in place if its type and content make it worthwhile
+     * @return The content encoding applied, or null if the file was left as-is
+     */
+    public String compressIfWorthwhile(Path file, String fileType) throws IOException {
+        Integer level = LEVELS.get(fileType.toLowerCase());
+        if (!enabled || level == null) {
+            return null;
+        }
+        
+        long size = Files.size(file);
+        if (!sampleCompresses(file, level)) {
+            return null;
+        }
+        
+        // Keep the staging suffix so interrupted runs are never mistaken for stored files
+        Path compressed = file.resolveSibling(
+                file.getFileName().toString().replace(FileService.TEMP_SUFFIX, ".gz" + FileService.TEMP_SUFFIX));
+        try {
+            try (InputStream in = Files.newInputStream(file);
+                 OutputStream out = new LeveledGzipOutputStream(Files.newOutputStream(compressed), level)) {
+                in.transferTo(out);
+            }
+            if (Files.size(compressed) > size * MAX_RATIO) {
+                return null;
+            }
+            Files.move(compressed, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return GZIP;
+        } finally {
+            Files.deleteIfExists(compressed);
+        }
+    }
+    
+    /**
+     * Wrap stored bytes so they read back as the original content
+     */
+    public InputStream decode(InputStream stored, String contentEncoding) throws IOException {
+        if (GZIP.equals(contentEncoding)) {
+            return new GZIPInputStream(stored, BUFFER_SIZE);
+        }
+        return stored;
+    }
+    
+    /**
+     * Deflate the start of the file to estimate whether it is compressible
+     */
+    private boolean sampleCompresses(Path file, int level) throws IOException {
+        byte[] sample;
+        try (InputStream in = Files.newInputStream(file)) {
+            sample = in.readNBytes(SAMPLE_SIZE);
+        }
+        
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long compressedSize = 0;
+            while (!deflater.finished()) {
+                compressedSize += deflater.deflate(buffer);
+            }
+            return compressedSize <= sample.length * MAX_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+    
+    /**
+     * GZIP output stream with a configurable deflate level
+     */
+    private static class LeveledGzipOutputStream extends GZIPOutputStream {
+        
+        LeveledGzipOutputStream(OutputStream out, int level) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.filesharing.service;
+
+import com.filesharing.dto.BlockSignaturesResponse;
+import com.filesharing.dto.FileResponse;
+import com.filesharing.entity.FileEntity;
+import com.filesharing.exception.FileStorageException;
+import com.filesharing.exception.StaleContentException;
+import com.filesharing.storage.StorageBackend;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Service class for rsync-style delta uploads
+ * Publishes a rolling checksum and an MD5 for each fixed-size block of a
+ * file's content. A client uploading a new version finds the blocks it still
+ * contains and sends only a delta: instructions to copy runs of old blocks,
+ * and literal bytes for everything else. The new version is rebuilt as a
+ * stream from the old content and the delta, then replaces the file's content.
+ *
+ * Delta format, big-endian: a sequence of COPY (0x01, int first block,
+ * int block count) and DATA (0x02, int length, bytes) instructions.
+ */
+@Service
+public class DeltaUploadService {
+    
+    private static final byte COPY = 0x01;
+    private static final byte DATA = 0x02;
+    private static final int MIN_BLOCK_SIZE = 1024;
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    private static final int MAX_BLOCKS = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    @Autowired
+    private FileService fileService;
+    
+    @Autowired
+    private QuotaService quotaService;
+    
+    @Autowired
+    private BlobService blobService;
+    
+    @Autowired
+    private StorageBackend storageBackend;
+    
+    @Autowired
+    private CompressionService compressionService;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${file.delta.block-size}")
+    private DataSize defaultBlockSize;
+    
+    @Value("${file.upload.max-chunked-size}")
+    private DataSize maxFileSize;
+    
+    private Counter copiedBytes;
+    private Counter literalBytes;
+    
+    /**
+     * Register delta upload metrics
+     */
+    @PostConstruct
+    public void init() {
+        this.copiedBytes = Counter.builder("file.delta.bytes")
+                .description("Bytes of delta-uploaded versions, by where they came from")
+                .baseUnit("bytes")
+                .tag("source", "copied")
+                .register(meterRegistry);
+        this.literalBytes = Counter.builder("file.delta.bytes")
+                .description("Bytes of delta-uploaded versions, by where they came from")
+                .baseUnit("bytes")
+                .tag("source", "literal")
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Compute the block signatures of a file's current content
+     * Large files get larger blocks, so the list stays bounded.
+     * @param requestedBlockSize Block size asked for, or null for the default
+     */
+    public BlockSignaturesResponse getSignatures(FileEntity file, Integer requestedBlockSize) throws IOException {
+        requireContentAddressed(file);
+        int blockSize = chooseBlockSize(file.getSize(),
+                requestedBlockSize != null ? requestedBlockSize : (int) defaultBlockSize.toBytes());
+        
+        MessageDigest md5 = newMd5();
+        List<BlockSignaturesResponse.BlockSignature> blocks = new ArrayList<>();
+        try (InputStream in = compressionService.decode(storageBackend.get(file.getFilePath()),
+                file.getContentEncoding())) {
+            byte[] block = new byte[blockSize];
+            int read;
+            while ((read = in.readNBytes(block, 0, blockSize)) > 0) {
+                md5.update(block, 0, read);
+                blocks.add(new BlockSignaturesResponse.BlockSignature(
+                        weakChecksum(block, read), HexFormat.of().formatHex(md5.digest())));
+            }
+        }
+        return new BlockSignaturesResponse(file.getId(), file.getEtag(), file.getSize(), blockSize, blocks);
+    }
+    
+    /**
+     * Rebuild a new version of a file from its current content and a delta
+     * The delta is applied as it is read, into a temporary file hashed on the
+     * way; nothing is held in memory beyond one buffer. The old content's
+     * space is handed over when the version is saved, so quota is only
+     * reserved as the new version grows past the old size.
+     * @param expectedEtag ETag from the signatures the delta was computed against
+     * @param blockSize Block size of those signatures
+     * @throws StaleContentException if the file's content is no longer the expected one
+     */
+    public FileResponse applyDelta(FileEntity file, String expectedEtag, int blockSize, InputStream delta)
+            throws IOException {
+        requireContentAddressed(file);
+        if (!file.getEtag().equals(expectedEtag)) {
+            throw new StaleContentException("File has changed since its signatures were fetched");
+        }
+        if (blockSize != chooseBlockSize(file.getSize(), blockSize)) {
+            throw new FileStorageException("Block size " + blockSize + " is not valid for this file");
+        }
+        
+        QuotaService.Reservation reservation = quotaService.reserve(file.getUploadedBy(), 0);
+        Path base = null;
+        Path target = fileService.createTempFile();
+        try {
+            // Gzipped content cannot be read at an offset, so decode it once first
+            if (file.getContentEncoding() != null) {
+                base = fileService.createTempFile();
+                try (InputStream in = compressionService.decode(storageBackend.get(file.getFilePath()),
+                        file.getContentEncoding())) {
+                    Files.copy(in, base);
+                }
+            }
+            
+            MessageDigest digest = blobService.newDigest();
+            long size;
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                 FileChannel decoded = base != null ? FileChannel.open(base, StandardOpenOption.READ) : null) {
+                size = apply(file, decoded, blockSize, new DataInputStream(delta), out, digest, reservation);
+            }
+            if (size == 0) {
+                throw new FileStorageException("Cannot upload empty file");
+            }
+            return fileService.replaceContent(file, expectedEtag, target, size, blobService.toHex(digest), reservation);
+        } finally {
+            reservation.cancel();
+            Files.deleteIfExists(target);
+            if (base != null) {
+                Files.deleteIfExists(base);
+            }
+        }
+    }
+    
+    /**
+     * Run the delta's instructions against the old content
+     * @param growing Reservation extended before any bytes past the old size are written
+     * @return Size of the new version
+     */
+    private long apply(FileEntity file, FileChannel decoded, int blockSize, DataInputStream delta,
+                       FileChannel out, MessageDigest digest, QuotaService.Reservation growing) throws IOException {
+        long blockCount = (file.getSize() + blockSize - 1) / blockSize;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long size = 0;
+        int op;
+        while ((op = delta.read()) != -1) {
+            try {
+                if (op == COPY) {
+                    long first = delta.readInt();
+                    long count = delta.readInt();
+                    if (first < 0 || count <= 0 || first + count > blockCount) {
+                        throw new FileStorageException("Delta copies blocks outside the file");
+                    }
+                    long offset = first * blockSize;
+                    long length = Math.min(count * blockSize, file.getSize() - offset);
+                    size = grow(file, size, length, growing);
+                    copyBase(file, decoded, offset, length, buffer, out, digest);
+                    copiedBytes.increment(length);
+                } else if (op == DATA) {
+                    int length = delta.readInt();
+                    if (length <= 0) {
+                        throw new FileStorageException("Delta data length must be positive");
+                    }
+                    size = grow(file, size, length, growing);
+                    copy(delta, buffer, out, digest, length);
+                    literalBytes.increment(length);
+                } else {
+                    throw new FileStorageException("Unknown delta instruction " + op);
+                }
+            } catch (EOFException ex) {
+                throw new FileStorageException("Delta ends in the middle of an instruction", ex);
+            }
+        }
+        return size;
+    }
+    
+    /**
+     * Copy a range of the old content to the new version
+     */
+    private void copyBase(FileEntity file, FileChannel decoded, long offset, long length, byte[] buffer,
+                          FileChannel out, MessageDigest digest) throws IOException {
+        if (decoded == null) {
+            try (InputStream in = storageBackend.getRange(file.getFilePath(), offset, length)) {
+                copy(in, buffer, out, digest, length);
+            }
+            return;
+        }
+        ByteBuffer view = ByteBuffer.wrap(buffer);
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+            view.clear().limit((int) Math.min(buffer.length, end - position));
+            int read = decoded.read(view, position);
+            if (read < 0) {
+                throw new EOFException("Old content is shorter than recorded");
+            }
+            write(buffer, read, out, digest);
+            position += read;
+        }
+    }
+    
+    /**
+     * Copy exactly length bytes from a stream to the new version
+     */
+    private void copy(InputStream in, byte[] buffer, FileChannel out, MessageDigest digest, long length)
+            throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            write(buffer, read, out, digest);
+            remaining -= read;
+        }
+    }
+    
+    private void write(byte[] buffer, int length, FileChannel out, MessageDigest digest) throws IOException {
+        digest.update(buffer, 0, length);
+        ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, length);
+        while (chunk.hasRemaining()) {
+            out.write(chunk);
+        }
+    }
+    
+    /**
+     * Account for length more bytes of the new version before they are written
+     * Only the part beyond the old size needs quota; the size itself is capped
+     * at the maximum file size.
+     * @return The new version's size with those bytes
+     */
+    private long grow(FileEntity file, long size, long length, QuotaService.Reservation growing) {
+        long grown = size + length;
+        if (grown > maxFileSize.toBytes()) {
+            throw new FileStorageException("Delta produces more than " + maxFileSize.toBytes() + " bytes");
+        }
+        long extra = Math.max(grown, file.getSize()) - Math.max(size, file.getSize());
+        if (extra > 0) {
+            growing.grow(extra);
+        }
+        return grown;
+    }
+    
+    /**
+     * Block size to use for a file: the requested size within bounds,
+     * raised until the file has at most MAX_BLOCKS blocks
+     */
+    private int chooseBlockSize(long fileSize, int requested) {
+        long blockSize = Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, requested));
+        long minimum = (fileSize + MAX_BLOCKS - 1) / MAX_BLOCKS;
+        return (int) Math.min(MAX_BLOCK_SIZE, Math.max(blockSize, minimum));
+    }
+    
+    /**
+     * Files stored before content addressing have no ETag to pin the old content
+     */
+    private void requireContentAddressed(FileEntity file) {
+        if (file.getEtag() == null) {
+            throw new FileStorageException("This file must be uploaded in full once before delta uploads");
+        }
+    }
+    
+    /**
+     * rsync's rolling checksum of a block: a is the sum of the bytes and b the
+     * sum of the running sums, both mod 2^16, packed as b << 16 | a. Clients
+     * roll it one byte at a time to find matching blocks at any offset.
+     */
+    static int weakChecksum(byte[] block, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += block[i] & 0xFF;
+            b += a;
+        }
+        return (b & 0xFFFF) << 16 | (a & 0xFFFF);
+    }
+    
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("MD5 is not available", ex);
+        }
+    }
+}
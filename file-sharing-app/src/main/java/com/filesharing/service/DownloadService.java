@@ -0,0 +1,437 @@
+package com.filesharing.service;
+
+import com.filesharing.entity.FileEntity;
+import com.filesharing.exception.ResourceNotFoundException;
+import com.filesharing.storage.HotBlobCache;
+import com.filesharing.storage.StorageBackend;
+import com.filesharing.storage.StoredObject;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.catalina.connector.CoyoteOutputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.ServletWebRequest;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Service class for writing stored files to the HTTP response
+ * Serves files with the container's sendfile support when available, so bytes
+ * go from the page cache to the socket without passing through the JVM heap.
+ * Falls back to FileChannel.transferTo on containers without sendfile, and
+ * streams from the storage backend when it has no local file to offer.
+ * Small, popular files are served from the off-heap HotBlobCache instead.
+ * Honors Range and If-Range so interrupted downloads can be resumed, and
+ * answers conditional requests from stored validators with 304.
+ */
+@Service
+public class DownloadService {
+    
+    // Request attributes understood by Tomcat's NIO connector
+    private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+    
+    // Below this size a plain channel copy is cheaper than setting up sendfile
+    private static final long SENDFILE_THRESHOLD = 48 * 1024;
+    
+    private static final String BYTES_UNIT = "bytes";
+    private static final String CRLF = "\r\n";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    
+    @Autowired
+    private StorageBackend storageBackend;
+    
+    @Autowired
+    private CompressionService compressionService;
+    
+    @Autowired
+    private HotBlobCache hotBlobCache;
+    
+    @Autowired
+    private DownloadStatsService downloadStatsService;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    private Counter zeroCopyBytes;
+    private Counter channelCopyBytes;
+    private Counter streamCopyBytes;
+    private Counter memoryCopyBytes;
+    private Counter notModifiedResponses;
+    
+    /**
+     * Register download metrics
+     */
+    @PostConstruct
+    public void init() {
+        this.zeroCopyBytes = Counter.builder("file.download.bytes")
+                .description("Bytes written to download responses")
+                .baseUnit("bytes")
+                .tag("path", "zero-copy")
+                .register(meterRegistry);
+        this.channelCopyBytes = Counter.builder("file.download.bytes")
+                .description("Bytes written to download responses")
+                .baseUnit("bytes")
+                .tag("path", "channel-copy")
+                .register(meterRegistry);
+        this.streamCopyBytes = Counter.builder("file.download.bytes")
+                .description("Bytes written to download responses")
+                .baseUnit("bytes")
+                .tag("path", "stream-copy")
+                .register(meterRegistry);
+        this.memoryCopyBytes = Counter.builder("file.download.bytes")
+                .description("Bytes written to download responses")
+                .baseUnit("bytes")
+                .tag("path", "memory")
+                .register(meterRegistry);
+        this.notModifiedResponses = Counter.builder("file.download.not-modified")
+                .description("Downloads answered with 304 Not Modified")
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Write a stored file to the response as an attachment
+     * Sends 200 with the whole file, 206 with one range or a
+     * multipart/byteranges body, or 416 if no requested range is satisfiable.
+     * Compressed files go out as stored with Content-Encoding when the client
+     * accepts it, and are decompressed on the fly otherwise.
+     * Responses that send content are counted as downloads of the file.
+     * @param shareToken Share token the file was reached through, or null
+     * @param bandwidth Bucket of bytes to pace the body by, or null to send at full speed
+     */
+    public void serveFile(FileEntity file, String shareToken, TokenBucket bandwidth, HttpServletRequest request,
+                          HttpServletResponse response) throws IOException {
+        if (bandwidth != null) {
+            response = new BandwidthShapedResponse(response, bandwidth);
+        }
+        String key = file.getFilePath();
+        
+        // Pick the representation from metadata alone so validators can be
+        // checked before storage is touched
+        String contentEncoding = file.getContentEncoding();
+        boolean encoded = contentEncoding != null && acceptsEncoding(request, contentEncoding);
+        String decodeEncoding = contentEncoding != null && !encoded ? contentEncoding : null;
+        if (contentEncoding != null) {
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        
+        // Answer If-None-Match / If-Modified-Since with 304 without opening the file
+        String etag = file.getEtag() == null ? null
+                : "\"" + file.getEtag() + (encoded ? "-" + contentEncoding : "") + "\"";
+        long lastModified = file.getUploadTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "private, no-cache");
+        ServletWebRequest webRequest = new ServletWebRequest(request, response);
+        if (etag != null ? webRequest.checkNotModified(etag, lastModified) : webRequest.checkNotModified(lastModified)) {
+            notModifiedResponses.increment();
+            return;
+        }
+        
+        // Hot content is served from memory without touching storage at all
+        ByteBuffer cached = hotBlobCache.get(key);
+        long storedSize;
+        if (cached != null) {
+            storedSize = cached.remaining();
+        } else {
+            StoredObject stored = storageBackend.stat(key);
+            if (stored == null) {
+                throw new ResourceNotFoundException("File not found: " + key);
+            }
+            storedSize = stored.getSize();
+            cached = hotBlobCache.admit(key, storedSize);
+        }
+        long length = decodeEncoding != null ? file.getSize() : storedSize;
+        if (encoded) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, contentEncoding);
+        }
+        
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, BYTES_UNIT);
+        if (etag != null) {
+            response.setHeader(HttpHeaders.ETAG, etag);
+        }
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                "attachment; filename=\"" + file.getFilename() + "\"");
+        
+        List<long[]> ranges = resolveRanges(request, length, etag, lastModified);
+        
+        if (ranges == null) {
+            response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+            response.setContentLengthLong(length);
+            writeRange(key, cached, decodeEncoding, 0, length, request, response);
+            downloadStatsService.recordDownload(file.getId(), shareToken, true, length);
+        } else if (ranges.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, BYTES_UNIT + " */" + length);
+        } else if (ranges.size() == 1) {
+            long start = ranges.get(0)[0];
+            long end = ranges.get(0)[1];
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(start, end, length));
+            response.setContentLengthLong(end - start + 1);
+            writeRange(key, cached, decodeEncoding, start, end + 1, request, response);
+            // Resumed and chunked fetches of one download only count once, from the start
+            downloadStatsService.recordDownload(file.getId(), shareToken, start == 0, end - start + 1);
+        } else {
+            writeMultipartRanges(key, cached, decodeEncoding, ranges, length, response);
+            downloadStatsService.recordDownload(file.getId(), shareToken,
+                    ranges.stream().anyMatch(range -> range[0] == 0),
+                    ranges.stream().mapToLong(range -> range[1] - range[0] + 1).sum());
+        }
+    }
+    
+    /**
+     * Work out which byte ranges to send
+     * Returns null for a full response, an empty list when nothing requested
+     * is satisfiable, and otherwise inclusive [start, end] pairs in request order
+     */
+    private List<long[]> resolveRanges(HttpServletRequest request, long length, String etag, long lastModified) {
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader == null || !rangeHeader.startsWith(BYTES_UNIT + "=")) {
+            return null;
+        }
+        
+        // A stale If-Range means the client's partial copy is of another version
+        if (!isIfRangeSatisfied(request, etag, lastModified)) {
+            return null;
+        }
+        
+        List<HttpRange> httpRanges;
+        try {
+            httpRanges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException ex) {
+            // Malformed or abusive Range headers are ignored
+            return null;
+        }
+        
+        List<long[]> ranges = new ArrayList<>();
+        long total = 0;
+        for (HttpRange httpRange : httpRanges) {
+            long start = httpRange.getRangeStart(length);
+            long end = Math.min(httpRange.getRangeEnd(length), length - 1);
+            if (start < length && start <= end) {
+                ranges.add(new long[] {start, end});
+                total += end - start + 1;
+            }
+        }
+        
+        // Overlapping ranges adding up to more than the file are not worth honoring
+        if (total > length) {
+            return null;
+        }
+        return ranges;
+    }
+    
+    /**
+     * Check the If-Range precondition against the entity tag or modification time
+     * Entity tags must match strongly; weak tags never satisfy If-Range
+     */
+    private boolean isIfRangeSatisfied(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        try {
+            long since = request.getDateHeader(HttpHeaders.IF_RANGE);
+            return lastModified / 1000 == since / 1000;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+    
+    /**
+     * Check whether the client accepts a content encoding
+     */
+    private boolean acceptsEncoding(HttpServletRequest request, String contentEncoding) {
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean wildcard = false;
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.trim().split(";");
+            String coding = parts[0].trim();
+            boolean refused = parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?");
+            if (coding.equalsIgnoreCase(contentEncoding)) {
+                return !refused;
+            }
+            if (coding.equals("*")) {
+                wildcard = !refused;
+            }
+        }
+        return wildcard;
+    }
+    
+    /**
+     * Write bytes [start, end) of the file as the whole response body
+     */
+    private void writeRange(String key, ByteBuffer cached, String decodeEncoding, long start, long end,
+                            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Path path = cached == null && decodeEncoding == null ? storageBackend.localPath(key) : null;
+        long count = end - start;
+        // Sendfile bypasses the response stream, so shaped responses cannot use it
+        if (path != null && count >= SENDFILE_THRESHOLD && isSendfileSupported(request)
+                && !(response instanceof BandwidthShapedResponse)) {
+            // Tomcat picks these up once the servlet returns and hands the
+            // file descriptor to the kernel
+            request.setAttribute(SENDFILE_FILENAME_ATTR, path.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_END_ATTR, end);
+            zeroCopyBytes.increment(count);
+            return;
+        }
+        
+        transfer(key, cached, path, decodeEncoding, start, end, response.getOutputStream());
+    }
+    
+    /**
+     * Write several ranges as a multipart/byteranges body
+     */
+    private void writeMultipartRanges(String key, ByteBuffer cached, String decodeEncoding, List<long[]> ranges,
+                                      long length, HttpServletResponse response) throws IOException {
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        
+        // Content-Length is known up front: part headers plus range bytes
+        List<byte[]> partHeaders = new ArrayList<>();
+        long contentLength = 0;
+        for (long[] range : ranges) {
+            byte[] header = (CRLF + "--" + boundary + CRLF
+                    + HttpHeaders.CONTENT_TYPE + ": " + MediaType.APPLICATION_OCTET_STREAM_VALUE + CRLF
+                    + HttpHeaders.CONTENT_RANGE + ": " + contentRange(range[0], range[1], length) + CRLF
+                    + CRLF).getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(header);
+            contentLength += header.length + (range[1] - range[0] + 1);
+        }
+        byte[] trailer = (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII);
+        contentLength += trailer.length;
+        
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        
+        Path path = cached == null && decodeEncoding == null ? storageBackend.localPath(key) : null;
+        OutputStream outputStream = response.getOutputStream();
+        for (int i = 0; i < ranges.size(); i++) {
+            outputStream.write(partHeaders.get(i));
+            transfer(key, cached, path, decodeEncoding, ranges.get(i)[0], ranges.get(i)[1] + 1, outputStream);
+        }
+        outputStream.write(trailer);
+    }
+    
+    /**
+     * Copy bytes [start, end) of the file to the response
+     * Cached content is written from its buffer, local files go through
+     * FileChannel.transferTo, and other backends are streamed.
+     * When decoding, offsets refer to the decompressed content.
+     */
+    private void transfer(String key, ByteBuffer cached, Path path, String decodeEncoding, long start, long end,
+                          OutputStream outputStream) throws IOException {
+        if (cached != null) {
+            ByteBuffer content = cached.duplicate();
+            if (decodeEncoding != null) {
+                try (InputStream in = compressionService.decode(HotBlobCache.asInputStream(content), decodeEncoding)) {
+                    in.skipNBytes(start);
+                    copyBytes(in, outputStream, end - start);
+                }
+            } else {
+                writeBuffer(content.limit((int) end).position((int) start), outputStream);
+            }
+            memoryCopyBytes.increment(end - start);
+            return;
+        }
+        if (decodeEncoding != null) {
+            try (InputStream in = compressionService.decode(storageBackend.get(key), decodeEncoding)) {
+                in.skipNBytes(start);
+                copyBytes(in, outputStream, end - start);
+            }
+            streamCopyBytes.increment(end - start);
+            return;
+        }
+        if (path != null) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                WritableByteChannel out = Channels.newChannel(outputStream);
+                long position = start;
+                while (position < end) {
+                    position += channel.transferTo(position, end - position, out);
+                }
+            }
+            channelCopyBytes.increment(end - start);
+            return;
+        }
+        
+        try (InputStream in = storageBackend.getRange(key, start, end - start)) {
+            in.transferTo(outputStream);
+        }
+        streamCopyBytes.increment(end - start);
+    }
+    
+    /**
+     * Write a buffer's remaining bytes
+     * Tomcat's output stream accepts buffers directly, avoiding a copy through
+     * a heap array for off-heap content.
+     */
+    private void writeBuffer(ByteBuffer buffer, OutputStream outputStream) throws IOException {
+        if (outputStream instanceof CoyoteOutputStream coyote) {
+            coyote.write(buffer);
+            return;
+        }
+        WritableByteChannel out = Channels.newChannel(outputStream);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+    
+    /**
+     * Copy exactly count bytes from a stream
+     */
+    private void copyBytes(InputStream in, OutputStream out, long count) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long remaining = count;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new EOFException("Stored content ended early");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+    
+    /**
+     * Format a Content-Range value for an inclusive byte range
+     */
+    private String contentRange(long start, long end, long length) {
+        return BYTES_UNIT + " " + start + "-" + end + "/" + length;
+    }
+    
+    /**
+     * Check whether the connector handling this request can use sendfile
+     */
+    private boolean isSendfileSupported(HttpServletRequest request) {
+        return Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR));
+    }
+}
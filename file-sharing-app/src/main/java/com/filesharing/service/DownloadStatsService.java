@@ -0,0 +1,162 @@
+package com.filesharing.service;
+
+import com.filesharing.repository.FileRepository;
+import com.filesharing.repository.ShareTokenRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Service class for per-file and per-share-link download counters
+ * Downloads are counted in striped LongAdders, so concurrent downloads of one
+ * file never contend, and the download path does no database write. The
+ * counts are added to the files and share_tokens rows in JDBC batches on a
+ * fixed interval and on shutdown. Adding increments rather than writing
+ * totals keeps the counts right when several nodes flush the same row.
+ * Counters idle for a flush are removed, and drained once more at the next
+ * flush to pick up downloads that still held them, so no count is lost.
+ */
+@Service
+public class DownloadStatsService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(DownloadStatsService.class);
+    
+    @Autowired
+    private FileRepository fileRepository;
+    
+    @Autowired
+    private ShareTokenRepository shareTokenRepository;
+    
+    private final Map<Long, DownloadCounter> files = new ConcurrentHashMap<>();
+    private final Map<String, DownloadCounter> shares = new ConcurrentHashMap<>();
+    
+    // Counters removed as idle by the last flush; guarded by this
+    private final List<Map.Entry<Long, DownloadCounter>> retiredFiles = new ArrayList<>();
+    private final List<Map.Entry<String, DownloadCounter>> retiredShares = new ArrayList<>();
+    
+    /**
+     * Count a response that sent content
+     * @param shareToken Stored share token it came through, or null
+     * @param newDownload Whether it starts a download: a full response, or a range from the first byte
+     * @param bytes Bytes of content sent
+     */
+    public void recordDownload(Long fileId, String shareToken, boolean newDownload, long bytes) {
+        files.computeIfAbsent(fileId, id -> new DownloadCounter()).add(newDownload, bytes);
+        // Signed links have no row to count against
+        if (shareToken != null && !SignedLinkService.isSignedLink(shareToken)) {
+            shares.computeIfAbsent(shareToken, token -> new DownloadCounter()).add(newDownload, bytes);
+        }
+    }
+    
+    /**
+     * Downloads of a file counted on this node but not yet flushed
+     */
+    public long pendingDownloads(Long fileId) {
+        DownloadCounter counter = files.get(fileId);
+        return counter != null ? counter.downloads.sum() : 0;
+    }
+    
+    /**
+     * Bytes downloaded from a file on this node but not yet flushed
+     */
+    public long pendingBytes(Long fileId) {
+        DownloadCounter counter = files.get(fileId);
+        return counter != null ? counter.bytes.sum() : 0;
+    }
+    
+    /**
+     * Add the counts since the last flush to the database
+     * Counts that cannot be written are kept for the next flush.
+     */
+    @Scheduled(fixedDelayString = "${file.download.stats.flush-interval}")
+    @PreDestroy
+    public synchronized void flush() {
+        Map<Long, long[]> fileCounts = drain(files, retiredFiles);
+        try {
+            fileRepository.addDownloads(fileCounts);
+        } catch (DataAccessException ex) {
+            restore(files, fileCounts);
+            logger.warn("Could not save download counts of {} files", fileCounts.size(), ex);
+        }
+        
+        Map<String, long[]> shareCounts = drain(shares, retiredShares);
+        try {
+            shareTokenRepository.addDownloads(shareCounts);
+        } catch (DataAccessException ex) {
+            restore(shares, shareCounts);
+            logger.warn("Could not save download counts of {} share links", shareCounts.size(), ex);
+        }
+    }
+    
+    /**
+     * Take and reset every counter, removing those idle since the last flush
+     * Counters removed last time are read once more and then dropped; a
+     * download that looked one up before its removal has long finished adding.
+     * @param retired Counters removed by the previous drain, replaced with those removed now
+     * @return Downloads and bytes by key, for keys with anything to add
+     */
+    private static <K> Map<K, long[]> drain(Map<K, DownloadCounter> counters,
+                                            List<Map.Entry<K, DownloadCounter>> retired) {
+        Map<K, long[]> counts = new HashMap<>();
+        for (Map.Entry<K, DownloadCounter> entry : retired) {
+            collect(counts, entry.getKey(), entry.getValue());
+        }
+        retired.clear();
+        
+        counters.forEach((key, counter) -> {
+            if (!collect(counts, key, counter) && counters.remove(key, counter)) {
+                retired.add(Map.entry(key, counter));
+            }
+        });
+        return counts;
+    }
+    
+    /**
+     * Take and reset one counter into the counts
+     * @return false if the counter was idle
+     */
+    private static <K> boolean collect(Map<K, long[]> counts, K key, DownloadCounter counter) {
+        long downloads = counter.downloads.sumThenReset();
+        long bytes = counter.bytes.sumThenReset();
+        if (downloads == 0 && bytes == 0) {
+            return false;
+        }
+        counts.merge(key, new long[] {downloads, bytes},
+                (a, b) -> new long[] {a[0] + b[0], a[1] + b[1]});
+        return true;
+    }
+    
+    private static <K> void restore(Map<K, DownloadCounter> counters, Map<K, long[]> counts) {
+        counts.forEach((key, count) -> {
+            DownloadCounter counter = counters.computeIfAbsent(key, k -> new DownloadCounter());
+            counter.downloads.add(count[0]);
+            counter.bytes.add(count[1]);
+        });
+    }
+    
+    /**
+     * Downloads and bytes sent since the last flush
+     */
+    private static class DownloadCounter {
+        
+        private final LongAdder downloads = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        
+        void add(boolean newDownload, long sent) {
+            if (newDownload) {
+                downloads.increment();
+            }
+            bytes.add(sent);
+        }
+    }
+}
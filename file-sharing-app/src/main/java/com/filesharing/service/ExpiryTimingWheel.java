@@ -0,0 +1,134 @@
+package com.filesharing.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hierarchical timing wheel of upcoming expiry times
+ * Level 0 has one slot per tick; each level above has slots as wide as the
+ * whole level below, and its entries cascade down as their slot comes round.
+ * Adding and advancing cost O(1) per entry regardless of how far ahead it
+ * expires. Expiries are kept at tick resolution and repeats are merged, so
+ * memory is bounded by the number of distinct ticks tracked, not by how many
+ * things expire. Expiries beyond the top level wait in an overflow set.
+ */
+public class ExpiryTimingWheel {
+    
+    private final long tickMillis;
+    private final int wheelSize;
+    
+    // levels.get(i).get(slot) holds the deadline ticks placed in that slot
+    private final List<List<Set<Long>>> levels = new ArrayList<>();
+    private final Set<Long> overflow = new HashSet<>();
+    
+    // Last tick processed
+    private long currentTick;
+    private boolean overdue;
+    
+    public ExpiryTimingWheel(long tickMillis, int wheelSize, int levelCount, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.currentTick = nowMillis / tickMillis;
+        for (int i = 0; i < levelCount; i++) {
+            List<Set<Long>> slots = new ArrayList<>(wheelSize);
+            for (int j = 0; j < wheelSize; j++) {
+                slots.add(new HashSet<>());
+            }
+            levels.add(slots);
+        }
+    }
+    
+    /**
+     * Track an expiry time
+     */
+    public synchronized void add(long deadlineMillis) {
+        // Rounded up, so an entry never fires before its deadline
+        long tick = (deadlineMillis + tickMillis - 1) / tickMillis;
+        if (tick <= currentTick) {
+            overdue = true;
+            return;
+        }
+        place(tick);
+    }
+    
+    /**
+     * Move the wheel up to the given time
+     * @return Whether any tracked expiry time has passed since the last call
+     */
+    public synchronized boolean advance(long nowMillis) {
+        long target = nowMillis / tickMillis;
+        boolean expired = overdue;
+        overdue = false;
+        while (currentTick < target) {
+            currentTick++;
+            // Highest level first, so entries can cascade through several levels in one tick
+            long granularity = topGranularity();
+            if (currentTick % (granularity * wheelSize) == 0) {
+                replace(overflow);
+            }
+            for (int level = levels.size() - 1; level > 0; level--, granularity /= wheelSize) {
+                if (currentTick % granularity == 0) {
+                    replace(levels.get(level).get((int) ((currentTick / granularity) % wheelSize)));
+                }
+            }
+            Set<Long> due = levels.get(0).get((int) (currentTick % wheelSize));
+            if (!due.isEmpty()) {
+                due.clear();
+                expired = true;
+            }
+        }
+        return expired;
+    }
+    
+    /**
+     * Number of expiry ticks tracked
+     * A tick added both before and after it moved down a level is counted
+     * twice until the two copies meet in the same slot.
+     */
+    public synchronized int size() {
+        int size = overflow.size();
+        for (List<Set<Long>> slots : levels) {
+            for (Set<Long> slot : slots) {
+                size += slot.size();
+            }
+        }
+        return size;
+    }
+    
+    private void place(long tick) {
+        long delta = tick - currentTick;
+        long granularity = 1;
+        for (List<Set<Long>> slots : levels) {
+            if (delta < granularity * wheelSize) {
+                slots.get((int) ((tick / granularity) % wheelSize)).add(tick);
+                return;
+            }
+            granularity *= wheelSize;
+        }
+        overflow.add(tick);
+    }
+    
+    /**
+     * Re-place the entries of a slot relative to the current tick
+     */
+    private void replace(Set<Long> slot) {
+        if (slot.isEmpty()) {
+            return;
+        }
+        List<Long> ticks = new ArrayList<>(slot);
+        slot.clear();
+        for (Long tick : ticks) {
+            place(tick);
+        }
+    }
+    
+    private long topGranularity() {
+        long granularity = 1;
+        for (int i = 1; i < levels.size(); i++) {
+            granularity *= wheelSize;
+        }
+        return granularity;
+    }
+}
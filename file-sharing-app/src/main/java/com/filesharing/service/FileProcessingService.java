@@ -0,0 +1,259 @@
+package com.filesharing.service;
+
+import com.filesharing.entity.FileEntity;
+import com.filesharing.entity.ProcessingStatus;
+import com.filesharing.processing.FileProcessingStage;
+import com.filesharing.repository.FileRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Service class for post-upload processing
+ * Uploads return as soon as the content and its row are stored; the
+ * registered FileProcessingStages then run on virtual threads. Each stage has
+ * its own bounded queue and a fixed number of workers, so a slow stage holds
+ * back only the files waiting for it and a full first queue sheds new work
+ * to the recovery sweep instead of blocking uploads. Results are only
+ * recorded for the content that was processed; a file whose content is
+ * replaced mid-run is processed again once the earlier run finishes.
+ */
+@Service
+public class FileProcessingService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(FileProcessingService.class);
+    
+    @Autowired
+    private FileRepository fileRepository;
+    
+    @Autowired
+    private List<FileProcessingStage> stages;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${file.processing.queue-capacity}")
+    private int queueCapacity;
+    
+    @Value("${file.processing.workers-per-stage}")
+    private int workersPerStage;
+    
+    // Longer than any file takes to process, so a live node's claim never lapses
+    @Value("${file.processing.lease-timeout}")
+    private Duration leaseTimeout;
+    
+    private final List<StageLane> lanes = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    
+    // Content hash of files queued or being processed, so the recovery sweep never queues one twice
+    private final Map<Long, String> inFlight = new ConcurrentHashMap<>();
+    
+    // Newer versions of files submitted while an older version was in flight
+    private final Map<Long, FileEntity> superseding = new ConcurrentHashMap<>();
+    
+    private Counter rejectedFiles;
+    
+    /**
+     * Start the workers for each stage and register pipeline metrics
+     */
+    @PostConstruct
+    public void init() {
+        this.rejectedFiles = Counter.builder("file.processing.rejected")
+                .description("Files left for the recovery sweep because the first queue was full")
+                .register(meterRegistry);
+        
+        for (int i = 0; i < stages.size(); i++) {
+            lanes.add(new StageLane(i, stages.get(i)));
+        }
+        for (StageLane lane : lanes) {
+            ThreadFactory factory = Thread.ofVirtual().name("process-" + lane.stage.getName() + "-", 0).factory();
+            for (int i = 0; i < workersPerStage; i++) {
+                Thread worker = factory.newThread(() -> runWorker(lane));
+                workers.add(worker);
+                worker.start();
+            }
+        }
+        logger.info("Started {} processing stages with {} workers each", lanes.size(), workersPerStage);
+    }
+    
+    /**
+     * Stop the workers; unfinished files are picked up again after restart
+     */
+    @PreDestroy
+    public void shutdown() {
+        workers.forEach(Thread::interrupt);
+    }
+    
+    /**
+     * Queue a newly stored file for processing without blocking the caller
+     * If an older version of the file is in flight, this one is queued when it finishes.
+     */
+    public void submit(FileEntity file) {
+        if (lanes.isEmpty()) {
+            return;
+        }
+        String version = Objects.toString(file.getContentHash(), "");
+        String running = inFlight.putIfAbsent(file.getId(), version);
+        if (running != null) {
+            if (!running.equals(version)) {
+                superseding.put(file.getId(), file);
+            }
+            return;
+        }
+        if (!lanes.get(0).queue.offer(file)) {
+            inFlight.remove(file.getId());
+            rejectedFiles.increment();
+        }
+    }
+    
+    /**
+     * Queue files whose processing never started, or whose node stopped
+     * processing them without finishing
+     * Pages past files already in flight here, so newer files are reached
+     * even while older ones fill the pipeline.
+     */
+    @Scheduled(fixedDelayString = "${file.processing.recovery-interval}")
+    public void requeueUnfinished() {
+        if (lanes.isEmpty()) {
+            return;
+        }
+        LocalDateTime staleBefore = LocalDateTime.now().minus(leaseTimeout);
+        long afterId = 0;
+        int free;
+        while ((free = lanes.get(0).queue.remainingCapacity()) > 0) {
+            List<FileEntity> files = fileRepository.findUnprocessed(staleBefore, afterId, PageRequest.of(0, free));
+            for (FileEntity file : files) {
+                submit(file);
+                afterId = file.getId();
+            }
+            if (files.size() < free) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Take files from a stage's queue until interrupted
+     */
+    private void runWorker(StageLane lane) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                FileEntity file = lane.queue.take();
+                try {
+                    process(lane, file);
+                } catch (RuntimeException ex) {
+                    logger.error("Processing file {} failed unexpectedly", file.getId(), ex);
+                    finish(file.getId());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Run one stage on a file and hand it to the next
+     */
+    private void process(StageLane lane, FileEntity file) throws InterruptedException {
+        Long fileId = file.getId();
+        if (lane.index == 0) {
+            LocalDateTime now = LocalDateTime.now();
+            if (fileRepository.claimForProcessing(fileId, file.getContentHash(), now, now.minus(leaseTimeout)) == 0) {
+                // Deleted while waiting, being processed by another node, or replaced;
+                // a replacement is queued in place of the outdated version
+                finish(fileId);
+                fileRepository.findById(fileId)
+                        .filter(current -> !Objects.equals(current.getContentHash(), file.getContentHash()))
+                        .ifPresent(this::submit);
+                return;
+            }
+        }
+        
+        if (lane.stage.supports(file)) {
+            Timer.Sample sample = Timer.start(meterRegistry);
+            try {
+                lane.stage.process(file);
+            } catch (Exception ex) {
+                lane.failures.increment();
+                logger.warn("Processing stage {} failed for file {}", lane.stage.getName(), fileId, ex);
+                fileRepository.updateProcessingResult(fileId, file.getContentHash(),
+                        ProcessingStatus.FAILED, file.getMimeType());
+                finish(fileId);
+                return;
+            } finally {
+                sample.stop(lane.duration);
+            }
+        }
+        
+        if (lane.index + 1 < lanes.size()) {
+            // Blocks while the next stage is saturated; only this virtual thread waits
+            lanes.get(lane.index + 1).queue.put(file);
+        } else {
+            fileRepository.updateProcessingResult(fileId, file.getContentHash(),
+                    ProcessingStatus.READY, file.getMimeType());
+            finish(fileId);
+        }
+    }
+    
+    /**
+     * Drop a file from the pipeline and queue the newer version submitted meanwhile, if any
+     * A version submitted just after this check is left for the recovery sweep.
+     */
+    private void finish(Long fileId) {
+        inFlight.remove(fileId);
+        FileEntity next = superseding.remove(fileId);
+        if (next != null) {
+            submit(next);
+        }
+    }
+    
+    /**
+     * A stage with its queue and metrics
+     */
+    private class StageLane {
+        
+        final int index;
+        final FileProcessingStage stage;
+        final BlockingQueue<FileEntity> queue;
+        final Timer duration;
+        final Counter failures;
+        
+        StageLane(int index, FileProcessingStage stage) {
+            this.index = index;
+            this.stage = stage;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.duration = Timer.builder("file.processing.stage.duration")
+                    .description("Time spent in a processing stage per file")
+                    .tag("stage", stage.getName())
+                    .register(meterRegistry);
+            this.failures = Counter.builder("file.processing.stage.failures")
+                    .description("Files a processing stage failed on")
+                    .tag("stage", stage.getName())
+                    .register(meterRegistry);
+            Gauge.builder("file.processing.queue.size", queue, BlockingQueue::size)
+                    .description("Files waiting for a processing stage")
+                    .tag("stage", stage.getName())
+                    .register(meterRegistry);
+        }
+    }
+}
@@ -1,29 +1,47 @@
 package com.filesharing.service;
 
+import com.filesharing.dto.BatchUploadResult;
 import com.filesharing.dto.FileResponse;
+import com.filesharing.entity.Blob;
 import com.filesharing.entity.FileEntity;
+import com.filesharing.entity.ProcessingStatus;
 import com.filesharing.entity.User;
 import com.filesharing.exception.FileStorageException;
 import com.filesharing.exception.ResourceNotFoundException;
+import com.filesharing.exception.StaleContentException;
 import com.filesharing.repository.FileRepository;
+import com.filesharing.repository.ShareTokenRepository;
 import com.filesharing.repository.UserRepository;
+import com.filesharing.storage.HotBlobCache;
+import com.filesharing.storage.StorageBackend;
+import com.filesharing.storage.StoragePathResolver;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -39,11 +57,48 @@ public class FileService {
     @Autowired
     private UserRepository userRepository;
     
-    @Value("${file.upload.dir}")
-    private String uploadDir;
+    @Autowired
+    private ShareTokenRepository shareTokenRepository;
+    
+    @Autowired
+    private BlobService blobService;
+    
+    @Autowired
+    private DownloadStatsService downloadStatsService;
+    
+    @Autowired
+    private StoragePathResolver storagePathResolver;
+    
+    @Autowired
+    private StorageBackend storageBackend;
+    
+    @Autowired
+    private FileProcessingService fileProcessingService;
+    
+    @Autowired
+    private HotBlobCache hotBlobCache;
+    
+    @Autowired
+    private QuotaService quotaService;
+    
+    @Autowired
+    private ShareResolutionCache shareResolutionCache;
     
     private static final List<String> ALLOWED_EXTENSIONS = Arrays.asList("pdf", "jpg", "png", "txt");
     private static final long MAX_FILE_SIZE = 10 * 1024 * 1024; // 10MB
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    static final String TEMP_SUFFIX = ".part";
+    
+    @Value("${file.upload.batch.parallelism}")
+    private int batchParallelism;
+    
+    // Parts of batch uploads being written at once, across all requests
+    private Semaphore batchUploadPermits;
+    
+    @PostConstruct
+    public void init() {
+        this.batchUploadPermits = new Semaphore(batchParallelism);
+    }
     
     /**
      * Upload a file
@@ -57,38 +112,305 @@ public class FileService {
         // Validate file
         validateFile(file);
         
+        QuotaService.Reservation reservation = quotaService.reserve(user, file.getSize());
         try {
-            // Create upload directory if it doesn't exist
-            Path uploadPath = Paths.get(uploadDir).toAbsolutePath().normalize();
-            Files.createDirectories(uploadPath);
-            
-            // Generate unique filename
             String originalFilename = StringUtils.cleanPath(file.getOriginalFilename());
-            String fileExtension = getFileExtension(originalFilename);
-            String uniqueFilename = UUID.randomUUID().toString() + "." + fileExtension;
-            
-            // Copy file to upload directory
-            Path targetLocation = uploadPath.resolve(uniqueFilename);
-            Files.copy(file.getInputStream(), targetLocation, StandardCopyOption.REPLACE_EXISTING);
-            
-            // Save file metadata to database
-            FileEntity fileEntity = new FileEntity();
-            fileEntity.setFilename(originalFilename);
-            fileEntity.setFileType(fileExtension);
-            fileEntity.setSize(file.getSize());
-            fileEntity.setFilePath(uniqueFilename);
-            fileEntity.setUploadedBy(user);
-            fileEntity.setUploadTime(LocalDateTime.now());
-            
-            fileRepository.save(fileEntity);
+            return storeFile(file.getInputStream(), originalFilename, user, reservation, false);
+        } catch (IOException ex) {
+            throw new FileStorageException("Could not store file. Please try again!", ex);
+        } finally {
+            reservation.cancel();
+        }
+    }
+    
+    /**
+     * Upload many files in one request
+     * Parts are written to storage concurrently on virtual threads, bounded
+     * across requests by the batch parallelism, and the rows of all stored
+     * parts are inserted in one JDBC batch. A failing part does not affect
+     * the others; each gets its own result, in request order.
+     */
+    public List<BatchUploadResult> uploadFiles(List<MultipartFile> files, String userEmail) {
+        User user = userRepository.findByEmail(userEmail)
+                .orElseThrow(() -> new ResourceNotFoundException("User not found"));
+        
+        // Each part reserves its own quota, so parts over the quota fail alone
+        QuotaService.Reservation[] reservations = new QuotaService.Reservation[files.size()];
+        List<Future<FileEntity>> staged = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < files.size(); i++) {
+                int part = i;
+                staged.add(executor.submit(() -> stageBatchPart(files.get(part), user, reservations, part)));
+            }
+        }
+        
+        try {
+            List<BatchUploadResult> results = new ArrayList<>();
+            List<FileEntity> stored = new ArrayList<>();
+            List<QuotaService.Reservation> storedReservations = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                String filename = files.get(i).getOriginalFilename();
+                try {
+                    FileEntity fileEntity = staged.get(i).get();
+                    stored.add(fileEntity);
+                    storedReservations.add(reservations[i]);
+                    results.add(new BatchUploadResult(filename, true, null, null));
+                } catch (ExecutionException ex) {
+                    results.add(new BatchUploadResult(filename, false, null, ex.getCause().getMessage()));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new FileStorageException("Interrupted while storing files", ex);
+                }
+            }
             
-            return mapToFileResponse(fileEntity);
+            try {
+                fileRepository.insertAll(stored);
+            } catch (RuntimeException ex) {
+                stored.forEach(file -> blobService.releaseBlob(file.getContentHash(), file.getFilePath()));
+                throw new FileStorageException("Could not save files. Please try again!", ex);
+            }
             
+            Iterator<FileEntity> saved = stored.iterator();
+            Iterator<QuotaService.Reservation> reserved = storedReservations.iterator();
+            for (BatchUploadResult result : results) {
+                if (result.isSuccess()) {
+                    FileEntity fileEntity = saved.next();
+                    reserved.next().settle(fileEntity.getSize());
+                    fileProcessingService.submit(fileEntity);
+                    result.setFile(mapToFileResponse(fileEntity));
+                }
+            }
+            return results;
+        } finally {
+            // Gives back the quota of every part that was not saved
+            for (QuotaService.Reservation reservation : reservations) {
+                if (reservation != null) {
+                    reservation.cancel();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Validate and store one part of a batch upload without saving its metadata
+     * The part's quota reservation is left in reservations at its index.
+     */
+    private FileEntity stageBatchPart(MultipartFile file, User user, QuotaService.Reservation[] reservations,
+                                      int part) throws IOException, InterruptedException {
+        validateFile(file);
+        String originalFilename = StringUtils.cleanPath(file.getOriginalFilename());
+        reservations[part] = quotaService.reserve(user, file.getSize());
+        
+        batchUploadPermits.acquire();
+        try (InputStream in = file.getInputStream()) {
+            return stageFile(in, originalFilename, user, null);
+        } finally {
+            batchUploadPermits.release();
+        }
+    }
+    
+    /**
+     * Upload a file from a raw request body
+     * Reads straight off the socket into the upload directory, so the bytes
+     * are written once instead of being spooled by the multipart resolver first.
+     * Memory use is bounded by the copy buffer; a slow disk simply stops us
+     * reading, which pushes back on the client through TCP flow control.
+     */
+    public FileResponse uploadFileStream(InputStream inputStream, String filename,
+                                         long contentLength, String userEmail) {
+        User user = userRepository.findByEmail(userEmail)
+                .orElseThrow(() -> new ResourceNotFoundException("User not found"));
+        
+        String originalFilename = StringUtils.cleanPath(filename);
+        validateFileType(originalFilename);
+        
+        // Reject declared sizes before reading a single byte;
+        // chunked bodies (-1) are checked while copying
+        if (contentLength == 0) {
+            throw new FileStorageException("Cannot upload empty file");
+        }
+        if (contentLength > MAX_FILE_SIZE) {
+            throw new FileStorageException("File size exceeds maximum limit of 10MB");
+        }
+        
+        // Chunked bodies grow their reservation as they are read
+        boolean declared = contentLength > 0;
+        QuotaService.Reservation reservation = quotaService.reserve(user, declared ? contentLength : 0);
+        try {
+            return storeFile(inputStream, originalFilename, user, reservation, !declared);
         } catch (IOException ex) {
             throw new FileStorageException("Could not store file. Please try again!", ex);
+        } finally {
+            reservation.cancel();
         }
     }
     
+    /**
+     * Copy an upload into the upload directory and save its metadata
+     * @param grow Whether to extend the reservation as the stream is read, for uploads of undeclared size
+     */
+    private FileResponse storeFile(InputStream inputStream, String originalFilename, User user,
+                                   QuotaService.Reservation reservation, boolean grow) throws IOException {
+        return saveFile(stageFile(inputStream, originalFilename, user, grow ? reservation : null), reservation);
+    }
+    
+    /**
+     * Copy an upload into blob storage and build its unsaved metadata
+     * The stream is hashed while it is written to a temporary file, then
+     * handed to content-addressed storage, so identical uploads share one blob.
+     * @param growing Reservation to extend as the stream is read, or null if the size was reserved up front
+     */
+    private FileEntity stageFile(InputStream inputStream, String originalFilename, User user,
+                                 QuotaService.Reservation growing) throws IOException {
+        Path tempLocation = createTempFile();
+        try {
+            MessageDigest digest = blobService.newDigest();
+            long size;
+            try (OutputStream out = Files.newOutputStream(tempLocation)) {
+                size = copyWithLimit(inputStream, out, MAX_FILE_SIZE, digest, growing);
+            }
+            if (size == 0) {
+                throw new FileStorageException("Cannot upload empty file");
+            }
+            return buildFileEntity(tempLocation, originalFilename, size, blobService.toHex(digest), user);
+        } finally {
+            Files.deleteIfExists(tempLocation);
+        }
+    }
+    
+    /**
+     * Reserve a temporary file in the upload directory
+     * Temporary files live beside their final location so committing them is a rename
+     */
+    public Path createTempFile() throws IOException {
+        return storagePathResolver.getUploadRoot().resolve(UUID.randomUUID().toString() + TEMP_SUFFIX);
+    }
+    
+    /**
+     * Store a fully written temporary file whose content hash is not yet known
+     */
+    public FileResponse commitFile(Path tempLocation, String originalFilename, long size, User user,
+                                   QuotaService.Reservation reservation) throws IOException {
+        return commitFile(tempLocation, originalFilename, size, blobService.computeHash(tempLocation), user, reservation);
+    }
+    
+    /**
+     * Hand a fully written temporary file to blob storage and save its metadata
+     */
+    private FileResponse commitFile(Path tempLocation, String originalFilename, long size,
+                                    String contentHash, User user, QuotaService.Reservation reservation) throws IOException {
+        return saveFile(buildFileEntity(tempLocation, originalFilename, size, contentHash, user), reservation);
+    }
+    
+    /**
+     * Hand a fully written temporary file to blob storage and build its unsaved metadata
+     */
+    private FileEntity buildFileEntity(Path tempLocation, String originalFilename, long size,
+                                       String contentHash, User user) throws IOException {
+        String fileExtension = getFileExtension(originalFilename);
+        
+        // Store content once per digest
+        Blob blob = blobService.storeBlob(tempLocation, contentHash, size, fileExtension);
+        
+        FileEntity fileEntity = new FileEntity();
+        fileEntity.setFilename(originalFilename);
+        fileEntity.setFileType(fileExtension);
+        fileEntity.setSize(size);
+        fileEntity.setFilePath(blobService.getStorageKey(blob));
+        fileEntity.setContentHash(contentHash);
+        fileEntity.setEtag(contentHash);
+        fileEntity.setContentEncoding(blob.getContentEncoding());
+        fileEntity.setUploadedBy(user);
+        fileEntity.setUploadTime(LocalDateTime.now());
+        fileEntity.setProcessingStatus(ProcessingStatus.PENDING);
+        return fileEntity;
+    }
+    
+    /**
+     * Replace the content of an existing file with a fully written temporary file
+     * The file keeps its ID, name and share links. The update only applies if
+     * the file still has the content the new version was built from; the old
+     * content is released afterwards.
+     * @throws StaleContentException if the file's content changed in the meantime
+     */
+    public FileResponse replaceContent(FileEntity file, String expectedEtag, Path tempLocation, long size,
+                                       String contentHash, QuotaService.Reservation reservation) throws IOException {
+        Blob blob = blobService.storeBlob(tempLocation, contentHash, size, file.getFileType());
+        String storageKey = blobService.getStorageKey(blob);
+        LocalDateTime uploadTime = LocalDateTime.now();
+        
+        int updated;
+        try {
+            updated = fileRepository.replaceContent(file.getId(), expectedEtag, size, storageKey, contentHash,
+                    blob.getContentEncoding(), ProcessingStatus.PENDING, uploadTime);
+        } catch (RuntimeException ex) {
+            blobService.releaseBlob(contentHash, storageKey);
+            throw ex;
+        }
+        if (updated == 0) {
+            blobService.releaseBlob(contentHash, storageKey);
+            throw new StaleContentException("File has changed since its signatures were fetched");
+        }
+        // Cached share links still point at the old content
+        shareResolutionCache.invalidateFile(file.getId());
+        // Release the old size while the reservation still marks the user mid-upload
+        quotaService.release(file.getUploadedBy().getId(), file.getSize());
+        reservation.settle(size);
+        blobService.releaseBlob(file.getContentHash(), file.getFilePath());
+        
+        file.setSize(size);
+        file.setFilePath(storageKey);
+        file.setContentHash(contentHash);
+        file.setEtag(contentHash);
+        file.setContentEncoding(blob.getContentEncoding());
+        file.setMimeType(null);
+        file.setProcessingStatus(ProcessingStatus.PENDING);
+        file.setUploadTime(uploadTime);
+        fileProcessingService.submit(file);
+        return mapToFileResponse(file);
+    }
+    
+    /**
+     * Save the metadata of a stored file, settle its quota reservation and queue it for processing
+     */
+    private FileResponse saveFile(FileEntity fileEntity, QuotaService.Reservation reservation) {
+        try {
+            fileRepository.save(fileEntity);
+        } catch (RuntimeException ex) {
+            blobService.releaseBlob(fileEntity.getContentHash(), fileEntity.getFilePath());
+            throw ex;
+        }
+        reservation.settle(fileEntity.getSize());
+        
+        // Everything else we learn about the file is computed after the response
+        fileProcessingService.submit(fileEntity);
+        
+        return mapToFileResponse(fileEntity);
+    }
+    
+    /**
+     * Copy a stream through a fixed-size buffer, failing once the limit is passed
+     * @param growing Reservation to extend by each chunk before it is written, or null
+     */
+    private long copyWithLimit(InputStream in, OutputStream out, long limit, MessageDigest digest,
+                               QuotaService.Reservation growing) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+            if (total > limit) {
+                throw new FileStorageException("File size exceeds maximum limit of 10MB");
+            }
+            if (growing != null) {
+                growing.grow(read);
+            }
+            digest.update(buffer, 0, read);
+            out.write(buffer, 0, read);
+        }
+        return total;
+    }
+    
     /**
      * Get all files uploaded by a user
      */
@@ -103,10 +425,10 @@ public class FileService {
     }
     
     /**
-     * Download a file by ID
+     * Get a file for download by ID
      * Only the owner can download their file directly
      */
-    public Resource downloadFile(Long fileId, String userEmail) {
+    public FileEntity getFileForDownload(Long fileId, String userEmail) {
         FileEntity file = fileRepository.findById(fileId)
                 .orElseThrow(() -> new ResourceNotFoundException("File not found"));
         
@@ -115,7 +437,62 @@ public class FileService {
             throw new RuntimeException("You don't have permission to download this file");
         }
         
-        return loadFileAsResource(file.getFilePath());
+        return file;
+    }
+    
+    /**
+     * Get several files for download, in the order requested
+     * Only the owner can download their files
+     */
+    public List<FileEntity> getFilesForDownload(List<Long> fileIds, String userEmail) {
+        List<Long> distinctIds = fileIds.stream().distinct().collect(Collectors.toList());
+        Map<Long, FileEntity> files = fileRepository.findAllById(distinctIds).stream()
+                .collect(Collectors.toMap(FileEntity::getId, Function.identity()));
+        
+        List<FileEntity> result = new ArrayList<>();
+        for (Long fileId : distinctIds) {
+            FileEntity file = files.get(fileId);
+            if (file == null) {
+                throw new ResourceNotFoundException("File not found: " + fileId);
+            }
+            if (!file.getUploadedBy().getEmail().equals(userEmail)) {
+                throw new RuntimeException("You don't have permission to download this file");
+            }
+            result.add(file);
+        }
+        return result;
+    }
+    
+    /**
+     * Delete a file
+     * Only the owner can delete their file; its share links go with it and
+     * the stored content is removed once no other file references it
+     */
+    public void deleteFile(Long fileId, String userEmail) {
+        FileEntity file = fileRepository.findById(fileId)
+                .orElseThrow(() -> new ResourceNotFoundException("File not found"));
+        
+        if (!file.getUploadedBy().getEmail().equals(userEmail)) {
+            throw new RuntimeException("You don't have permission to delete this file");
+        }
+        
+        quotaService.release(file.getUploadedBy().getId(), file.getSize(), () -> {
+            shareTokenRepository.deleteByFile(file);
+            fileRepository.delete(file);
+        });
+        shareResolutionCache.invalidateFile(file.getId());
+        
+        if (file.getContentHash() != null) {
+            blobService.releaseBlob(file.getContentHash(), file.getFilePath());
+        } else {
+            // Files stored before content addressing own their bytes outright
+            hotBlobCache.invalidate(file.getFilePath());
+            try {
+                storageBackend.delete(file.getFilePath());
+            } catch (IOException ex) {
+                throw new FileStorageException("Could not delete file", ex);
+            }
+        }
     }
     
     /**
@@ -127,21 +504,23 @@ public class FileService {
     }
     
     /**
-     * Load file as resource for download
+     * Get references to several files the user owns, without loading them
+     * Ownership of all of them is checked with one query.
+     * @return Uninitialized file references, in the order requested
      */
-    public Resource loadFileAsResource(String filename) {
-        try {
-            Path filePath = Paths.get(uploadDir).toAbsolutePath().normalize().resolve(filename);
-            Resource resource = new UrlResource(filePath.toUri());
-            
-            if (resource.exists()) {
-                return resource;
-            } else {
-                throw new ResourceNotFoundException("File not found: " + filename);
+    public List<FileEntity> getOwnedFileReferences(List<Long> fileIds, String userEmail) {
+        Set<Long> owned = new HashSet<>(fileRepository.findIdsOwnedBy(new HashSet<>(fileIds), userEmail));
+        for (Long fileId : fileIds) {
+            if (!owned.contains(fileId)) {
+                if (!fileRepository.existsById(fileId)) {
+                    throw new ResourceNotFoundException("File not found: " + fileId);
+                }
+                throw new RuntimeException("You don't have permission to share this file");
             }
-        } catch (MalformedURLException ex) {
-            throw new ResourceNotFoundException("File not found: " + filename);
         }
+        return fileIds.stream()
+                .map(fileRepository::getReferenceById)
+                .collect(Collectors.toList());
     }
     
     /**
@@ -158,7 +537,13 @@ public class FileService {
         }
         
         // Check file extension
-        String filename = file.getOriginalFilename();
+        validateFileType(file.getOriginalFilename());
+    }
+    
+    /**
+     * Validate file type by extension
+     */
+    public void validateFileType(String filename) {
         String extension = getFileExtension(filename);
         
         if (!ALLOWED_EXTENSIONS.contains(extension.toLowerCase())) {
@@ -185,7 +570,12 @@ public class FileService {
             file.getFilename(),
             file.getFileType(),
             file.getSize(),
-            file.getUploadTime()
+            file.getUploadTime(),
+            file.getMimeType(),
+            file.getProcessingStatus(),
+            // Counts on this node not flushed yet are included
+            file.getDownloadCount() + downloadStatsService.pendingDownloads(file.getId()),
+            file.getDownloadBytes() + downloadStatsService.pendingBytes(file.getId())
         );
     }
 }
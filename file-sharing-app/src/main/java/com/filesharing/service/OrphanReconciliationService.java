@@ -0,0 +1,368 @@
+package com.filesharing.service;
+
+import com.filesharing.entity.Blob;
+import com.filesharing.entity.FileEntity;
+import com.filesharing.repository.BlobRepository;
+import com.filesharing.repository.FileRepository;
+import com.filesharing.storage.StorageBackend;
+import com.filesharing.storage.StoredObject;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Service class for reconciling stored objects with the database
+ * Each run advances two incremental scans by one batch: stored keys in key
+ * order, moving objects no blob or file row points at into a quarantine
+ * directory, and file rows in ID order, flagging rows whose content is gone.
+ * Storage calls are paced to a configured rate and both cursors are
+ * checkpointed to disk, so a restart resumes where the last batch ended.
+ */
+@Service
+public class OrphanReconciliationService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(OrphanReconciliationService.class);
+    
+    private static final String OBJECT_CURSOR = "objects.after";
+    private static final String FILE_CURSOR = "files.after";
+    
+    @Autowired
+    private StorageBackend storageBackend;
+    
+    @Autowired
+    private FileRepository fileRepository;
+    
+    @Autowired
+    private BlobRepository blobRepository;
+    
+    @Autowired
+    private BlobService blobService;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${file.reconcile.enabled}")
+    private boolean enabled;
+    
+    @Value("${file.reconcile.batch-size}")
+    private int batchSize;
+    
+    @Value("${file.reconcile.max-operations-per-second}")
+    private int maxOperationsPerSecond;
+    
+    // Objects younger than this may belong to an upload that has not saved its row yet
+    @Value("${file.reconcile.grace-period}")
+    private Duration gracePeriod;
+    
+    @Value("${file.reconcile.quarantine-dir}")
+    private String quarantineDir;
+    
+    @Value("${file.reconcile.checkpoint-file}")
+    private String checkpointFile;
+    
+    private Path quarantinePath;
+    private Path checkpointPath;
+    
+    // Scan positions; null and 0 mean the start of a pass
+    private String objectCursor;
+    private long fileCursor;
+    
+    private boolean listingSupported = true;
+    private long nextOperationNanos;
+    
+    private Counter scannedObjects;
+    private Counter scannedFiles;
+    private Counter orphans;
+    private Counter orphanBytes;
+    private Counter danglingFiles;
+    
+    /**
+     * Register reconciliation metrics and load the checkpoint
+     */
+    @PostConstruct
+    public void init() {
+        this.quarantinePath = Paths.get(quarantineDir).toAbsolutePath().normalize();
+        this.checkpointPath = Paths.get(checkpointFile).toAbsolutePath().normalize();
+        loadCheckpoint();
+        
+        this.scannedObjects = Counter.builder("file.reconcile.scanned")
+                .description("Stored objects and file rows checked by the reconciler")
+                .tag("kind", "object")
+                .register(meterRegistry);
+        this.scannedFiles = Counter.builder("file.reconcile.scanned")
+                .description("Stored objects and file rows checked by the reconciler")
+                .tag("kind", "file")
+                .register(meterRegistry);
+        this.orphans = Counter.builder("file.reconcile.orphans")
+                .description("Stored objects moved to quarantine because nothing references them")
+                .register(meterRegistry);
+        this.orphanBytes = Counter.builder("file.reconcile.orphan.bytes")
+                .description("Bytes moved to quarantine")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.danglingFiles = Counter.builder("file.reconcile.dangling")
+                .description("File rows flagged because their stored content is missing")
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Advance both scans by one batch and save the checkpoint
+     */
+    @Scheduled(fixedDelayString = "${file.reconcile.interval}")
+    public void reconcileBatch() {
+        if (!enabled) {
+            return;
+        }
+        
+        try {
+            if (listingSupported) {
+                reconcileObjects();
+            }
+            reconcileFiles();
+        } catch (IOException | DataAccessException ex) {
+            logger.error("Orphan reconciliation failed; will retry", ex);
+        } finally {
+            saveCheckpoint();
+        }
+    }
+    
+    /**
+     * Quarantine unreferenced objects among the next batch of stored keys
+     */
+    private void reconcileObjects() throws IOException {
+        List<String> keys;
+        try {
+            pace(1);
+            keys = storageBackend.listKeys(objectCursor, batchSize);
+        } catch (UnsupportedOperationException ex) {
+            logger.warn("Skipping the orphan object scan: {}", ex.getMessage());
+            listingSupported = false;
+            return;
+        }
+        
+        Set<String> referenced = referencedKeys(keys);
+        long cutoff = System.currentTimeMillis() - gracePeriod.toMillis();
+        for (String key : keys) {
+            scannedObjects.increment();
+            if (!referenced.contains(key)) {
+                quarantineIfOrphaned(key, cutoff);
+            }
+            objectCursor = key;
+        }
+        
+        if (keys.size() < batchSize) {
+            logger.info("Finished a reconciliation pass over stored objects");
+            objectCursor = null;
+        }
+    }
+    
+    /**
+     * Flag or unflag the next batch of file rows by whether their content exists
+     */
+    private void reconcileFiles() throws IOException {
+        List<FileEntity> files = fileRepository.findByIdGreaterThanOrderByIdAsc(
+                fileCursor, PageRequest.of(0, batchSize));
+        
+        List<Long> missing = new ArrayList<>();
+        List<Long> found = new ArrayList<>();
+        for (FileEntity file : files) {
+            pace(1);
+            StoredObject stored = storageBackend.stat(file.getFilePath());
+            scannedFiles.increment();
+            if (stored == null && file.getMissingSince() == null) {
+                missing.add(file.getId());
+            } else if (stored != null && file.getMissingSince() != null) {
+                found.add(file.getId());
+            }
+        }
+        
+        if (!missing.isEmpty()) {
+            // Rows deleted since they were read are not updated
+            int flagged = fileRepository.markMissing(missing, LocalDateTime.now());
+            danglingFiles.increment(flagged);
+            logger.warn("Flagged {} files whose stored content is missing: {}", flagged, missing);
+        }
+        if (!found.isEmpty()) {
+            fileRepository.clearMissing(found);
+            logger.info("Stored content of files {} is available again", found);
+        }
+        
+        if (files.size() < batchSize) {
+            logger.info("Finished a reconciliation pass over file rows");
+            fileCursor = 0;
+        } else {
+            fileCursor = files.get(files.size() - 1).getId();
+        }
+    }
+    
+    /**
+     * Keys of a batch that a blob or a file row points at
+     */
+    private Set<String> referencedKeys(List<String> keys) {
+        Set<String> referenced = new HashSet<>(fileRepository.findFilePathsIn(keys));
+        Set<String> contentHashes = keys.stream()
+                .map(blobService::getContentHash)
+                .collect(Collectors.toSet());
+        for (Blob blob : blobRepository.findByContentHashIn(contentHashes)) {
+            referenced.add(blobService.getStorageKey(blob));
+        }
+        return referenced;
+    }
+    
+    /**
+     * Move an object to quarantine if it is still unreferenced and old enough
+     * The move runs under the blob's row lock, like the last release of a
+     * blob. An upload on another node stores its bytes before it saves its
+     * row, so references are checked again after the move and an object
+     * that gained one meanwhile is moved back.
+     */
+    private void quarantineIfOrphaned(String key, long cutoff) throws IOException {
+        // One stat and one move
+        pace(2);
+        String contentHash = blobService.getContentHash(key);
+        // Stays negative unless the object is moved
+        long[] size = {-1};
+        boolean moved = blobService.whileUnreferenced(key, () -> {
+            if (fileRepository.existsByFilePath(key)) {
+                return;
+            }
+            StoredObject stored = storageBackend.stat(key);
+            if (stored == null || stored.getLastModified() > cutoff) {
+                return;
+            }
+            size[0] = stored.getSize();
+            quarantine(key);
+        }) && size[0] >= 0;
+        if (!moved) {
+            return;
+        }
+        
+        if (isReferenced(key, contentHash)) {
+            pace(1);
+            restore(key);
+            logger.warn("Object {} was referenced while it was quarantined; restored it", key);
+            return;
+        }
+        orphans.increment();
+        orphanBytes.increment(size[0]);
+        logger.warn("Quarantined orphaned object {} ({} bytes)", key, size[0]);
+    }
+    
+    private boolean isReferenced(String key, String contentHash) {
+        return fileRepository.existsByFilePath(key) || blobRepository.findByContentHash(contentHash)
+                .map(blobService::getStorageKey)
+                .filter(key::equals)
+                .isPresent();
+    }
+    
+    /**
+     * Move an object's bytes into the quarantine directory and remove it from storage
+     */
+    private void quarantine(String key) throws IOException {
+        Files.createDirectories(quarantinePath);
+        Path target = quarantinePath.resolve(key);
+        Path local = storageBackend.localPath(key);
+        if (local != null) {
+            Files.move(local, target, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            try (InputStream in = storageBackend.get(key)) {
+                Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        // Removes copies the move did not cover, e.g. other replicas
+        storageBackend.delete(key);
+    }
+    
+    /**
+     * Put a quarantined object back into storage
+     * The content is addressed by its digest, so bytes stored again by an
+     * upload in the meantime are identical and may be overwritten.
+     */
+    private void restore(String key) throws IOException {
+        storageBackend.put(key, quarantinePath.resolve(key));
+    }
+    
+    /**
+     * Wait until the next storage calls fit within the configured rate
+     */
+    private void pace(int operations) throws IOException {
+        long now = System.nanoTime();
+        long wait = nextOperationNanos - now;
+        nextOperationNanos = Math.max(now, nextOperationNanos)
+                + operations * TimeUnit.SECONDS.toNanos(1) / maxOperationsPerSecond;
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Reconciliation interrupted");
+            }
+        }
+    }
+    
+    /**
+     * Restore the cursors of the last run, or start a new pass without a usable checkpoint
+     */
+    private void loadCheckpoint() {
+        if (!Files.exists(checkpointPath)) {
+            return;
+        }
+        Properties checkpoint = new Properties();
+        try (Reader reader = Files.newBufferedReader(checkpointPath)) {
+            checkpoint.load(reader);
+            objectCursor = checkpoint.getProperty(OBJECT_CURSOR);
+            fileCursor = Long.parseLong(checkpoint.getProperty(FILE_CURSOR, "0"));
+            logger.info("Resuming reconciliation after object {} and file {}", objectCursor, fileCursor);
+        } catch (IOException | NumberFormatException ex) {
+            logger.warn("Could not read the reconciliation checkpoint; starting a new pass", ex);
+        }
+    }
+    
+    /**
+     * Write both cursors to a temporary file and rename it over the checkpoint
+     */
+    private void saveCheckpoint() {
+        Properties checkpoint = new Properties();
+        if (objectCursor != null) {
+            checkpoint.setProperty(OBJECT_CURSOR, objectCursor);
+        }
+        checkpoint.setProperty(FILE_CURSOR, Long.toString(fileCursor));
+        
+        Path temp = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(checkpointPath.getParent());
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                checkpoint.store(out, "Orphan reconciliation checkpoint");
+            }
+            Files.move(temp, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            logger.warn("Could not save the reconciliation checkpoint", ex);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.filesharing.service;
+
+import com.filesharing.entity.User;
+import com.filesharing.entity.UserUsage;
+import com.filesharing.exception.QuotaExceededException;
+import com.filesharing.repository.FileRepository;
+import com.filesharing.repository.UserUsageRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Service class for per-user storage quotas
+ * Usage is kept in per-user counters, loaded on a user's first upload or
+ * delete, so checking a quota costs a compare-and-set instead of a SUM
+ * over the files table. Uploads reserve their size before any bytes are
+ * written, or grow the reservation as they read when the size is not
+ * declared, and settle to the stored size afterwards. Changed counters are
+ * written to user_usage in batches, and a reconcile job corrects them
+ * against the files table, which stays the source of truth.
+ */
+@Service
+public class QuotaService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(QuotaService.class);
+    
+    private static final int RECONCILE_BATCH_SIZE = 500;
+    
+    @Autowired
+    private UserUsageRepository userUsageRepository;
+    
+    @Autowired
+    private FileRepository fileRepository;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${file.quota.enabled}")
+    private boolean enabled;
+    
+    @Value("${file.quota.default-limit}")
+    private DataSize defaultLimit;
+    
+    private final Map<Long, Usage> usage = new ConcurrentHashMap<>();
+    
+    // Users whose counter changed since the last flush
+    private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+    
+    private Counter rejections;
+    private Counter corrections;
+    
+    /**
+     * Register quota metrics
+     */
+    @PostConstruct
+    public void init() {
+        this.rejections = Counter.builder("file.quota.rejected")
+                .description("Uploads rejected because they would exceed the user's quota")
+                .register(meterRegistry);
+        this.corrections = Counter.builder("file.quota.corrections")
+                .description("Usage counters corrected by the reconcile job")
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Reserve space for an upload before writing it
+     * @param bytes Size of the upload, or the most it can be when not declared
+     * @return Reservation to settle once the file is saved, or cancel
+     * @throws QuotaExceededException if the upload would take the user over their quota
+     */
+    public Reservation reserve(User user, long bytes) {
+        Usage userUsage = usageOf(user.getId());
+        long limit = user.getStorageQuota() != null ? user.getStorageQuota() : defaultLimit.toBytes();
+        userUsage.begin();
+        try {
+            claim(userUsage, limit, bytes);
+        } catch (QuotaExceededException ex) {
+            userUsage.end();
+            throw ex;
+        }
+        dirty.add(user.getId());
+        return new Reservation(user.getId(), userUsage, limit, bytes);
+    }
+    
+    /**
+     * Return the space of a file whose content is being replaced
+     * Call it before settling the new content's reservation, so the user
+     * still counts as mid-upload for reconcile until both have been applied.
+     */
+    public void release(Long userId, long bytes) {
+        usageOf(userId).add(-bytes, 0);
+        dirty.add(userId);
+    }
+    
+    /**
+     * Delete a file and return its space
+     * The user counts as mid-upload for reconcile from before the rows are
+     * deleted until the counter is updated, so reconcile cannot correct the
+     * counter to the new SUM in between and have the release subtract again.
+     * @param delete Deletes the file's rows
+     */
+    public void release(Long userId, long bytes, Runnable delete) {
+        Usage userUsage = usageOf(userId);
+        userUsage.begin();
+        try {
+            delete.run();
+            userUsage.add(-bytes, 0);
+        } finally {
+            userUsage.end();
+        }
+        dirty.add(userId);
+    }
+    
+    /**
+     * Write changed counters to user_usage in one batch
+     */
+    @Scheduled(fixedDelayString = "${file.quota.flush-interval}")
+    @PreDestroy
+    public void flush() {
+        Map<Long, Long> batch = new HashMap<>();
+        for (Long userId : dirty) {
+            dirty.remove(userId);
+            // Space reserved by uploads in progress is saved once they settle
+            Usage userUsage = usage.get(userId);
+            batch.put(userId, userUsage.used.get() - userUsage.pending.get());
+        }
+        
+        try {
+            userUsageRepository.saveAllUsage(batch);
+        } catch (DataAccessException ex) {
+            // Keep the users dirty so the next flush retries them
+            dirty.addAll(batch.keySet());
+            logger.warn("Could not save storage usage of {} users", batch.size(), ex);
+        }
+    }
+    
+    /**
+     * Correct loaded counters against the files table
+     * Users with uploads or deletes in progress are skipped, since a row
+     * saved or deleted between the SUM and reading the counter would look
+     * like drift, as are users whose counter changed while their files were
+     * being summed. Every update bumps the change count before it touches the
+     * counter, so reading the count before the SUM and again after the
+     * counter detects any movement without a lock; the correction itself is
+     * an add, so an update racing it is not lost.
+     */
+    @Scheduled(fixedDelayString = "${file.quota.reconcile-interval}")
+    public void reconcile() {
+        List<Long> userIds = new ArrayList<>(usage.keySet());
+        for (int start = 0; start < userIds.size(); start += RECONCILE_BATCH_SIZE) {
+            List<Long> batch = userIds.subList(start, Math.min(start + RECONCILE_BATCH_SIZE, userIds.size()));
+            Map<Long, Long> changesBefore = new HashMap<>();
+            for (Long userId : batch) {
+                Usage userUsage = usage.get(userId);
+                long changes = userUsage.changes.get();
+                if (userUsage.open.get() == 0) {
+                    changesBefore.put(userId, changes);
+                }
+            }
+            
+            Map<Long, Long> stored = new HashMap<>();
+            for (Object[] row : fileRepository.sumSizeByUploaders(batch)) {
+                stored.put((Long) row[0], ((Number) row[1]).longValue());
+            }
+            
+            for (Map.Entry<Long, Long> entry : changesBefore.entrySet()) {
+                Long userId = entry.getKey();
+                Usage userUsage = usage.get(userId);
+                long drift = stored.getOrDefault(userId, 0L) - userUsage.used.get();
+                if (userUsage.changes.get() != entry.getValue()) {
+                    // Changed while summing; the next run will check it
+                    continue;
+                }
+                userUsage.used.addAndGet(drift);
+                if (drift != 0) {
+                    dirty.add(userId);
+                    corrections.increment();
+                    logger.info("Corrected storage usage of user {} by {} bytes", userId, drift);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Reserve bytes on a user's counter unless that takes it over the limit
+     * @throws QuotaExceededException if it would
+     */
+    private void claim(Usage userUsage, long limit, long bytes) {
+        userUsage.changes.incrementAndGet();
+        long current;
+        do {
+            current = userUsage.used.get();
+            if (enabled && current + bytes > limit) {
+                rejections.increment();
+                throw new QuotaExceededException("Storage quota of " + DataSize.ofBytes(limit).toMegabytes()
+                        + "MB exceeded");
+            }
+        } while (!userUsage.used.compareAndSet(current, current + bytes));
+        userUsage.pending.addAndGet(bytes);
+    }
+    
+    /**
+     * Get a user's counter, loading it on first use
+     * Starts from user_usage, or from the files table for users without a row.
+     */
+    private Usage usageOf(Long userId) {
+        Usage userUsage = usage.get(userId);
+        if (userUsage != null) {
+            return userUsage;
+        }
+        
+        // Load outside the map so a slow query does not block other users' updates
+        Long saved = userUsageRepository.findById(userId).map(UserUsage::getUsedBytes).orElse(null);
+        Usage loaded = new Usage(saved != null ? saved : fileRepository.sumSizeByUploader(userId));
+        Usage existing = usage.putIfAbsent(userId, loaded);
+        if (existing != null) {
+            return existing;
+        }
+        if (saved == null) {
+            dirty.add(userId);
+        }
+        return loaded;
+    }
+    
+    /**
+     * Bytes used by one user, including space reserved by uploads in progress
+     * Updates are counted before they are applied, so reconcile can tell
+     * whether the counter moved while the user's files were being summed.
+     */
+    private static class Usage {
+        
+        private final AtomicLong used;
+        private final AtomicLong pending = new AtomicLong();
+        // Uploads and deletes whose rows may change before the counter does
+        private final AtomicInteger open = new AtomicInteger();
+        private final AtomicLong changes = new AtomicLong();
+        
+        Usage(long used) {
+            this.used = new AtomicLong(used);
+        }
+        
+        void add(long usedBytes, long pendingBytes) {
+            changes.incrementAndGet();
+            used.addAndGet(usedBytes);
+            pending.addAndGet(pendingBytes);
+        }
+        
+        void begin() {
+            changes.incrementAndGet();
+            open.incrementAndGet();
+        }
+        
+        void end() {
+            changes.incrementAndGet();
+            open.decrementAndGet();
+        }
+    }
+    
+    /**
+     * Space held for one upload
+     * Exactly one of settle or cancel takes effect; later calls are ignored,
+     * so cancel can go in a finally block after settle.
+     */
+    public final class Reservation {
+        
+        private final Long userId;
+        private final Usage userUsage;
+        private final long limit;
+        private final AtomicLong bytes;
+        private final AtomicBoolean done = new AtomicBoolean();
+        
+        private Reservation(Long userId, Usage userUsage, long limit, long bytes) {
+            this.userId = userId;
+            this.userUsage = userUsage;
+            this.limit = limit;
+            this.bytes = new AtomicLong(bytes);
+        }
+        
+        /**
+         * Reserve more space for an upload of undeclared size as it is read
+         * @throws QuotaExceededException if that would take the user over their quota
+         */
+        public void grow(long extraBytes) {
+            if (!done.get()) {
+                claim(userUsage, limit, extraBytes);
+                bytes.addAndGet(extraBytes);
+                dirty.add(userId);
+            }
+        }
+        
+        /**
+         * Keep the space of a saved file, adjusted to its actual size
+         */
+        public void settle(long actualBytes) {
+            if (done.compareAndSet(false, true)) {
+                userUsage.add(actualBytes - bytes.get(), -bytes.get());
+                userUsage.end();
+                dirty.add(userId);
+            }
+        }
+        
+        /**
+         * Give back the space of an upload that was not saved
+         */
+        public void cancel() {
+            if (done.compareAndSet(false, true)) {
+                userUsage.add(-bytes.get(), -bytes.get());
+                userUsage.end();
+                dirty.add(userId);
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.filesharing.service;
+
+import com.filesharing.repository.RevokedShareLinkRepository;
+import com.filesharing.repository.ShareTokenRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Service class for purging expired share links
+ * Expiry times of links created on this node go into a timing wheel, and a
+ * worker advances the wheel every tick, purging as soon as any of them has
+ * passed. Rows are deleted in bounded batches in expiry order, on the
+ * expiry_time index, so a purge never holds long locks on share_tokens. A
+ * periodic sweep also catches links created on other nodes or before startup.
+ */
+@Service
+public class ShareExpiryService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(ShareExpiryService.class);
+    
+    // With one-minute ticks the wheel spans 60 minutes, 60 hours and 150 days
+    private static final int WHEEL_SIZE = 60;
+    private static final int WHEEL_LEVELS = 3;
+    
+    @Autowired
+    private ShareTokenRepository shareTokenRepository;
+    
+    @Autowired
+    private RevokedShareLinkRepository revokedShareLinkRepository;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${file.share.purge.enabled}")
+    private boolean enabled;
+    
+    @Value("${file.share.purge.tick}")
+    private Duration tick;
+    
+    @Value("${file.share.purge.batch-size}")
+    private int batchSize;
+    
+    @Value("${file.share.purge.max-batches-per-run}")
+    private int maxBatchesPerRun;
+    
+    @Value("${file.share.purge.sweep-interval}")
+    private Duration sweepInterval;
+    
+    private ExpiryTimingWheel wheel;
+    
+    // The first run after startup is a sweep
+    private long nextSweepMillis;
+    
+    // Set when a run stopped with expired rows left
+    private boolean backlog;
+    
+    // Age of the oldest expired link still stored, as of the last run
+    private final AtomicLong lagSeconds = new AtomicLong();
+    
+    private Counter removedTokens;
+    private Counter removedRevocations;
+    
+    /**
+     * Create the timing wheel and register purge metrics
+     */
+    @PostConstruct
+    public void init() {
+        this.wheel = new ExpiryTimingWheel(tick.toMillis(), WHEEL_SIZE, WHEEL_LEVELS, System.currentTimeMillis());
+        
+        this.removedTokens = Counter.builder("file.share.purge.removed")
+                .description("Expired share links deleted")
+                .tag("table", "share_tokens")
+                .register(meterRegistry);
+        this.removedRevocations = Counter.builder("file.share.purge.removed")
+                .description("Expired share links deleted")
+                .tag("table", "revoked_share_links")
+                .register(meterRegistry);
+        Gauge.builder("file.share.purge.lag", lagSeconds, AtomicLong::get)
+                .description("Age of the oldest expired share link not yet deleted")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        Gauge.builder("file.share.purge.tracked", this, service -> service.wheel.size())
+                .description("Upcoming share link expiry times tracked by the timing wheel")
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Track the expiry of a stored share link created on this node
+     */
+    public void track(LocalDateTime expiryTime) {
+        wheel.add(expiryTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+    }
+    
+    /**
+     * Advance the timing wheel and purge if a tracked link expired, rows were
+     * left over from the last run, or a sweep is due
+     */
+    @Scheduled(fixedDelayString = "${file.share.purge.tick}")
+    public void onTick() {
+        long now = System.currentTimeMillis();
+        boolean expired = wheel.advance(now);
+        if (!enabled || !(expired || backlog || now >= nextSweepMillis)) {
+            return;
+        }
+        
+        try {
+            purge();
+            nextSweepMillis = now + sweepInterval.toMillis();
+        } catch (DataAccessException ex) {
+            // Retried on the next tick
+            backlog = true;
+            logger.warn("Could not purge expired share links", ex);
+        }
+    }
+    
+    /**
+     * Delete expired links, at most max-batches-per-run batches at a time
+     */
+    private void purge() {
+        LocalDateTime cutoff = LocalDateTime.now();
+        int batches = 0;
+        int deleted;
+        long total = 0;
+        do {
+            deleted = shareTokenRepository.deleteExpired(cutoff, batchSize);
+            total += deleted;
+            removedTokens.increment(deleted);
+            batches++;
+        } while (deleted == batchSize && batches < maxBatchesPerRun);
+        backlog = deleted == batchSize;
+        
+        int revocations = revokedShareLinkRepository.deleteByExpiryTimeBefore(cutoff);
+        removedRevocations.increment(revocations);
+        
+        LocalDateTime oldest = shareTokenRepository.findOldestExpiryTime();
+        lagSeconds.set(oldest != null && oldest.isBefore(cutoff)
+                ? Duration.between(oldest, cutoff).getSeconds() : 0);
+        
+        if (total > 0 || revocations > 0) {
+            logger.info("Purged {} expired share tokens and {} expired revocations{}", total, revocations,
+                    backlog ? "; more remain" : "");
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.filesharing.service;
+
+import com.filesharing.exception.RateLimitExceededException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Rate limits and bandwidth buckets for public share downloads
+ * Each client IP and each share link gets a token bucket of requests, and
+ * each bandwidth-limited link a bucket of bytes shared by all of its
+ * downloads. Buckets are lock-free, so the download path never blocks on
+ * another request's check. Buckets that have refilled are dropped by a
+ * periodic sweep; a new bucket starts full, so dropping them loses nothing.
+ * Once max-entries clients are tracked, the oldest client bucket is dropped
+ * for each new one.
+ */
+@Component
+public class ShareRateLimiter {
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${file.share.rate-limit.enabled}")
+    private boolean enabled;
+    
+    @Value("${file.share.rate-limit.per-client.requests-per-second}")
+    private long clientRate;
+    
+    @Value("${file.share.rate-limit.per-client.burst}")
+    private long clientBurst;
+    
+    @Value("${file.share.rate-limit.per-link.requests-per-second}")
+    private long linkRate;
+    
+    @Value("${file.share.rate-limit.per-link.burst}")
+    private long linkBurst;
+    
+    // Proxies that append to X-Forwarded-For; entries left of theirs come from the client
+    @Value("${file.share.rate-limit.trusted-proxies}")
+    private int trustedProxies;
+    
+    @Value("${file.share.rate-limit.max-entries}")
+    private int maxEntries;
+    
+    // Limit of links created without one; 0 leaves them unshaped
+    @Value("${file.share.bandwidth.default-bytes-per-second}")
+    private DataSize defaultBandwidth;
+    
+    // Bytes a shaped download may send at once before pacing starts
+    @Value("${file.share.bandwidth.burst}")
+    private DataSize bandwidthBurst;
+    
+    private final Map<String, TokenBucket> clients = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> links = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> bandwidth = new ConcurrentHashMap<>();
+    
+    // Client buckets in creation order, to drop the oldest when the map is full
+    private final Queue<Map.Entry<String, TokenBucket>> clientOrder = new ConcurrentLinkedQueue<>();
+    
+    private Counter clientRejections;
+    private Counter linkRejections;
+    
+    /**
+     * Register rate limit metrics
+     */
+    @PostConstruct
+    public void init() {
+        this.clientRejections = Counter.builder("file.share.rate-limit.rejected")
+                .description("Share downloads rejected for exceeding a rate limit")
+                .tag("scope", "client")
+                .register(meterRegistry);
+        this.linkRejections = Counter.builder("file.share.rate-limit.rejected")
+                .description("Share downloads rejected for exceeding a rate limit")
+                .tag("scope", "link")
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Count a download request against its client IP
+     * Checked before the link is resolved, so guessing links is limited too.
+     * @throws RateLimitExceededException if the client is over its limit
+     */
+    public void checkClient(HttpServletRequest request) {
+        if (!enabled) {
+            return;
+        }
+        String client = clientAddress(request);
+        TokenBucket bucket = clients.get(client);
+        if (bucket == null) {
+            bucket = clients.computeIfAbsent(client, key -> {
+                TokenBucket created = new TokenBucket(clientRate, clientBurst);
+                clientOrder.add(Map.entry(key, created));
+                return created;
+            });
+            evictOldestClients();
+        }
+        if (!bucket.tryAcquire(1)) {
+            clientRejections.increment();
+            throw new RateLimitExceededException("Too many downloads from this address", retryAfter(bucket));
+        }
+    }
+    
+    /**
+     * Count a download request against a resolved share link
+     * @throws RateLimitExceededException if the link is over its limit
+     */
+    public void checkLink(String token) {
+        if (!enabled) {
+            return;
+        }
+        TokenBucket bucket = bucketFor(links, token, key -> new TokenBucket(linkRate, linkBurst));
+        if (!bucket.tryAcquire(1)) {
+            linkRejections.increment();
+            throw new RateLimitExceededException("Too many downloads of this link", retryAfter(bucket));
+        }
+    }
+    
+    /**
+     * Bucket of bytes shared by all downloads of a bandwidth-limited link
+     * @param linkLimit Limit set on the link, or null for the default
+     * @return The link's bucket, or null if it is not limited
+     */
+    public TokenBucket bandwidthFor(String token, Long linkLimit) {
+        long maxBytesPerSecond = effectiveBandwidth(linkLimit);
+        if (maxBytesPerSecond <= 0) {
+            return null;
+        }
+        return bucketFor(bandwidth, token, key -> new TokenBucket(maxBytesPerSecond,
+                Math.min(maxBytesPerSecond, bandwidthBurst.toBytes())));
+    }
+    
+    /**
+     * Bucket of bytes for a bundle of shared files: that of its most limited link
+     * @return The bucket, or null if no link in the bundle is limited
+     */
+    public TokenBucket bandwidthFor(List<SharedFile> files) {
+        SharedFile strictest = null;
+        long strictestLimit = Long.MAX_VALUE;
+        for (SharedFile file : files) {
+            long limit = effectiveBandwidth(file.getMaxBytesPerSecond());
+            if (limit > 0 && limit < strictestLimit) {
+                strictest = file;
+                strictestLimit = limit;
+            }
+        }
+        return strictest != null ? bandwidthFor(strictest.getToken(), strictest.getMaxBytesPerSecond()) : null;
+    }
+    
+    /**
+     * Drop buckets that have refilled
+     */
+    @Scheduled(fixedDelayString = "${file.share.rate-limit.sweep-interval}")
+    public void evictIdle() {
+        clients.values().removeIf(TokenBucket::isFull);
+        clientOrder.removeIf(entry -> clients.get(entry.getKey()) != entry.getValue());
+        links.values().removeIf(TokenBucket::isFull);
+        bandwidth.values().removeIf(TokenBucket::isFull);
+    }
+    
+    /**
+     * Drop the oldest client buckets until the map is within max-entries
+     * A bucket is only removed if it is still the one queued, so a client
+     * swept and seen again keeps its new bucket.
+     */
+    private void evictOldestClients() {
+        while (clients.size() > maxEntries) {
+            Map.Entry<String, TokenBucket> oldest = clientOrder.poll();
+            if (oldest == null) {
+                return;
+            }
+            clients.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+    
+    private TokenBucket bucketFor(Map<String, TokenBucket> buckets, String key,
+                                  Function<String, TokenBucket> factory) {
+        TokenBucket bucket = buckets.get(key);
+        return bucket != null ? bucket : buckets.computeIfAbsent(key, factory);
+    }
+    
+    private long effectiveBandwidth(Long linkLimit) {
+        return linkLimit != null ? linkLimit : defaultBandwidth.toBytes();
+    }
+    
+    /**
+     * Address of the client, as seen by the outermost trusted proxy
+     * Each proxy appends the address it received the request from, so with n
+     * proxies the client is the n-th entry from the right; anything further
+     * left was sent by the client and could be forged.
+     */
+    private String clientAddress(HttpServletRequest request) {
+        if (trustedProxies > 0) {
+            String forwardedFor = request.getHeader("X-Forwarded-For");
+            if (forwardedFor != null && !forwardedFor.isBlank()) {
+                String[] hops = forwardedFor.split(",");
+                return hops[Math.max(0, hops.length - trustedProxies)].trim();
+            }
+        }
+        return request.getRemoteAddr();
+    }
+    
+    private static long retryAfter(TokenBucket bucket) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(bucket.nanosUntilAvailable(1) + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+}
@@ -0,0 +1,257 @@
+package com.filesharing.service;
+
+import com.filesharing.entity.FileEntity;
+import com.filesharing.entity.ShareToken;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of share tokens resolved to the file they point at
+ * Public downloads of a cached token need no database round trip. Entries
+ * hold a detached snapshot of the file and expire with their share link, or
+ * after the cache TTL if that comes first, which bounds how long a change
+ * made on another node can go unseen. Revoking a link, or changing or
+ * deleting its file, drops the entries on this node at once.
+ *
+ * Signed share links name their file by ID, so their file snapshots are
+ * cached by ID for the cache TTL, with the same invalidation.
+ */
+@Component
+public class ShareResolutionCache {
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${file.share.cache.ttl}")
+    private Duration ttl;
+    
+    @Value("${file.share.cache.max-entries}")
+    private int maxEntries;
+    
+    private final Map<String, ResolvedShare> shares = new ConcurrentHashMap<>();
+    
+    // Files behind signed share links, by file ID
+    private final Map<Long, ResolvedShare> files = new ConcurrentHashMap<>();
+    
+    // Tokens by file ID, so changing or deleting a file drops all of its links
+    private final Map<Long, Set<String>> tokensByFile = new ConcurrentHashMap<>();
+    
+    // Bumped by every invalidation; a lookup that raced one is not cached
+    private final AtomicLong generation = new AtomicLong();
+    
+    private Counter hits;
+    private Counter misses;
+    
+    /**
+     * Register cache metrics
+     */
+    @PostConstruct
+    public void init() {
+        this.hits = Counter.builder("file.share.cache.requests")
+                .description("Share token lookups, by whether the cache answered them")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.misses = Counter.builder("file.share.cache.requests")
+                .description("Share token lookups, by whether the cache answered them")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        Gauge.builder("file.share.cache.size", shares, Map::size)
+                .description("Share tokens currently cached")
+                .register(meterRegistry);
+        Gauge.builder("file.share.cache.files", files, Map::size)
+                .description("Files of signed share links currently cached")
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Get the file behind a token, if it is cached and has not expired
+     * @return Snapshot of the shared file with the link's settings, or null on a miss
+     */
+    public SharedFile get(String token) {
+        ResolvedShare share = shares.get(token);
+        if (share == null) {
+            misses.increment();
+            return null;
+        }
+        if (share.expiresAt <= System.currentTimeMillis()) {
+            remove(token, share);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return new SharedFile(token, share.file, share.maxBytesPerSecond);
+    }
+    
+    /**
+     * Get a file shared by a signed link, if it is cached and fresh
+     * @return Snapshot of the file, or null on a miss
+     */
+    public FileEntity getFile(Long fileId) {
+        ResolvedShare share = files.get(fileId);
+        if (share == null || share.expiresAt <= System.currentTimeMillis()) {
+            if (share != null) {
+                files.remove(fileId, share);
+            }
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return share.file;
+    }
+    
+    /**
+     * Generation to pass to put, read before looking the token up
+     */
+    public long currentGeneration() {
+        return generation.get();
+    }
+    
+    /**
+     * Cache a share token resolved from the database
+     * Skipped if anything was invalidated since the lookup started, so a
+     * concurrently revoked link is never cached, or if the cache is full of
+     * live entries.
+     * @param lookupGeneration Value of currentGeneration from before the lookup
+     */
+    public void put(ShareToken shareToken, long lookupGeneration) {
+        long now = System.currentTimeMillis();
+        long expiresAt = Math.min(now + ttl.toMillis(),
+                shareToken.getExpiryTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        if (expiresAt <= now) {
+            return;
+        }
+        if (shares.size() >= maxEntries) {
+            evictExpired();
+            if (shares.size() >= maxEntries) {
+                return;
+            }
+        }
+        
+        FileEntity file = snapshot(shareToken.getFile());
+        // Added inside compute so a concurrent remove cannot drop the set after it is looked up
+        tokensByFile.compute(file.getId(), (id, tokens) -> {
+            Set<String> set = tokens != null ? tokens : ConcurrentHashMap.newKeySet();
+            set.add(shareToken.getToken());
+            return set;
+        });
+        shares.put(shareToken.getToken(), new ResolvedShare(file, shareToken.getMaxBytesPerSecond(), expiresAt));
+        if (generation.get() != lookupGeneration) {
+            // An invalidation ran meanwhile and may have missed this entry
+            remove(shareToken.getToken(), shares.get(shareToken.getToken()));
+        }
+    }
+    
+    /**
+     * Cache a file looked up for a signed link
+     * Skipped under the same conditions as put.
+     * @param lookupGeneration Value of currentGeneration from before the lookup
+     */
+    public void putFile(FileEntity file, long lookupGeneration) {
+        if (files.size() >= maxEntries) {
+            evictExpired();
+            if (files.size() >= maxEntries) {
+                return;
+            }
+        }
+        
+        ResolvedShare share = new ResolvedShare(snapshot(file), null, System.currentTimeMillis() + ttl.toMillis());
+        files.put(file.getId(), share);
+        if (generation.get() != lookupGeneration) {
+            files.remove(file.getId(), share);
+        }
+    }
+    
+    /**
+     * Drop a revoked token
+     */
+    public void invalidate(String token) {
+        generation.incrementAndGet();
+        ResolvedShare share = shares.get(token);
+        if (share != null) {
+            remove(token, share);
+        }
+    }
+    
+    /**
+     * Drop every token of a file whose content changed or that was deleted
+     */
+    public void invalidateFile(Long fileId) {
+        generation.incrementAndGet();
+        files.remove(fileId);
+        Set<String> tokens = tokensByFile.remove(fileId);
+        if (tokens != null) {
+            tokens.forEach(shares::remove);
+        }
+    }
+    
+    /**
+     * Remove entries whose link or TTL has expired
+     */
+    @Scheduled(fixedDelayString = "${file.share.cache.sweep-interval}")
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        shares.forEach((token, share) -> {
+            if (share.expiresAt <= now) {
+                remove(token, share);
+            }
+        });
+        files.values().removeIf(share -> share.expiresAt <= now);
+    }
+    
+    private void remove(String token, ResolvedShare share) {
+        if (share != null && shares.remove(token, share)) {
+            tokensByFile.computeIfPresent(share.file.getId(), (id, tokens) -> {
+                tokens.remove(token);
+                return tokens.isEmpty() ? null : tokens;
+            });
+        }
+    }
+    
+    /**
+     * Copy of a file's metadata detached from the persistence context
+     * The uploader is left out; public downloads never need it.
+     */
+    private static FileEntity snapshot(FileEntity file) {
+        FileEntity copy = new FileEntity();
+        copy.setId(file.getId());
+        copy.setFilename(file.getFilename());
+        copy.setFileType(file.getFileType());
+        copy.setSize(file.getSize());
+        copy.setFilePath(file.getFilePath());
+        copy.setContentHash(file.getContentHash());
+        copy.setEtag(file.getEtag());
+        copy.setContentEncoding(file.getContentEncoding());
+        copy.setMimeType(file.getMimeType());
+        copy.setProcessingStatus(file.getProcessingStatus());
+        copy.setUploadTime(file.getUploadTime());
+        return copy;
+    }
+    
+    /**
+     * A token's file snapshot, its bandwidth limit and when the entry stops being served
+     */
+    private static class ResolvedShare {
+        
+        private final FileEntity file;
+        private final Long maxBytesPerSecond;
+        private final long expiresAt;
+        
+        ResolvedShare(FileEntity file, Long maxBytesPerSecond, long expiresAt) {
+            this.file = file;
+            this.maxBytesPerSecond = maxBytesPerSecond;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -1,16 +1,24 @@
 package com.filesharing.service;
 
+import com.filesharing.dto.BulkShareRequest;
 import com.filesharing.dto.ShareLinkResponse;
 import com.filesharing.entity.FileEntity;
 import com.filesharing.entity.ShareToken;
 import com.filesharing.exception.ResourceNotFoundException;
 import com.filesharing.repository.ShareTokenRepository;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * Service class for file sharing operations
@@ -25,13 +33,32 @@ public class ShareService {
     @Autowired
     private FileService fileService;
     
+    @Autowired
+    private ShareResolutionCache shareResolutionCache;
+    
+    @Autowired
+    private SignedLinkService signedLinkService;
+    
+    @Autowired
+    private ShareExpiryService shareExpiryService;
+    
+    // Issue HMAC-signed links instead of stored tokens
+    @Value("${file.share.signed.enabled}")
+    private boolean signedLinksEnabled;
+    
     private static final int DEFAULT_EXPIRY_HOURS = 24;
+    private static final long MIN_BYTES_PER_SECOND = 1024;
+    private static final String SHARE_LINK_BASE = "http://localhost:8080/api/share/download/";
+    private static final DateTimeFormatter EXPIRY_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
     
     /**
      * Generate share link for a file
      * Creates a unique token with 24-hour expiry
+     * @param maxBytesPerSecond Bandwidth shared by all downloads of the link, or null for the default
      */
-    public ShareLinkResponse generateShareLink(Long fileId, String userEmail) {
+    public ShareLinkResponse generateShareLink(Long fileId, String userEmail, Long maxBytesPerSecond) {
+        validateBandwidth(maxBytesPerSecond);
+        
         // Get file and verify ownership
         FileEntity file = fileService.getFileById(fileId);
         
@@ -39,43 +66,107 @@ public class ShareService {
             throw new RuntimeException("You don't have permission to share this file");
         }
         
-        // Generate unique token
-        String token = UUID.randomUUID().toString();
-        
         // Set expiry time (24 hours from now)
         LocalDateTime expiryTime = LocalDateTime.now().plusHours(DEFAULT_EXPIRY_HOURS);
         
-        // Create and save share token
-        ShareToken shareToken = new ShareToken();
-        shareToken.setToken(token);
-        shareToken.setFile(file);
-        shareToken.setExpiryTime(expiryTime);
-        shareToken.setCreatedTime(LocalDateTime.now());
-        
-        shareTokenRepository.save(shareToken);
+        String token;
+        if (signedLinksEnabled && maxBytesPerSecond == null) {
+            // Signed links carry their own file and expiry; nothing is stored
+            token = signedLinkService.sign(file.getId(), expiryTime);
+        } else {
+            // Generate unique token
+            token = UUID.randomUUID().toString();
+            
+            // Create and save share token
+            ShareToken shareToken = new ShareToken();
+            shareToken.setToken(token);
+            shareToken.setFile(file);
+            shareToken.setExpiryTime(expiryTime);
+            shareToken.setCreatedTime(LocalDateTime.now());
+            shareToken.setMaxBytesPerSecond(maxBytesPerSecond);
+            
+            shareTokenRepository.save(shareToken);
+            shareExpiryService.track(expiryTime);
+        }
         
-        // Create share link
-        String shareLink = "http://localhost:8080/api/share/download/" + token;
+        return toResponse(token, expiryTime, DEFAULT_EXPIRY_HOURS);
+    }
+    
+    /**
+     * Generate share links for many files at once
+     * Ownership of all files is checked with one query and the tokens are
+     * inserted in one JDBC batch; a file listed twice gets two links.
+     * @return One link per requested link, in the order requested
+     */
+    public List<ShareLinkResponse> generateShareLinks(List<BulkShareRequest.Link> links, String userEmail) {
+        links.forEach(link -> validateBandwidth(link.getMaxBytesPerSecond()));
+        List<FileEntity> files = fileService.getOwnedFileReferences(
+                links.stream().map(BulkShareRequest.Link::getFileId).collect(Collectors.toList()), userEmail);
         
-        // Format expiry time
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-        String formattedExpiry = expiryTime.format(formatter);
+        LocalDateTime now = LocalDateTime.now();
+        List<ShareToken> shareTokens = new ArrayList<>();
+        List<ShareLinkResponse> responses = new ArrayList<>();
+        for (int i = 0; i < links.size(); i++) {
+            int hours = links.get(i).getExpiryHours() != null ? links.get(i).getExpiryHours() : DEFAULT_EXPIRY_HOURS;
+            LocalDateTime expiryTime = now.plusHours(hours);
+            
+            String token;
+            if (signedLinksEnabled && links.get(i).getMaxBytesPerSecond() == null) {
+                token = signedLinkService.sign(files.get(i).getId(), expiryTime);
+            } else {
+                token = UUID.randomUUID().toString();
+                ShareToken shareToken = new ShareToken();
+                shareToken.setToken(token);
+                shareToken.setFile(files.get(i));
+                shareToken.setExpiryTime(expiryTime);
+                shareToken.setCreatedTime(now);
+                shareToken.setMaxBytesPerSecond(links.get(i).getMaxBytesPerSecond());
+                shareTokens.add(shareToken);
+                shareExpiryService.track(expiryTime);
+            }
+            responses.add(toResponse(token, expiryTime, hours));
+        }
         
+        shareTokenRepository.insertAll(shareTokens);
+        return responses;
+    }
+    
+    /**
+     * Signed links cannot carry a bandwidth limit, so limited links are always stored
+     */
+    private void validateBandwidth(Long maxBytesPerSecond) {
+        if (maxBytesPerSecond != null && maxBytesPerSecond < MIN_BYTES_PER_SECOND) {
+            throw new RuntimeException("Bandwidth limit must be at least " + MIN_BYTES_PER_SECOND + " bytes per second");
+        }
+    }
+    
+    private ShareLinkResponse toResponse(String token, LocalDateTime expiryTime, int hours) {
         return new ShareLinkResponse(
-            shareLink,
+            SHARE_LINK_BASE + token,
             token,
-            formattedExpiry,
-            "Share link generated successfully. Valid for 24 hours."
+            expiryTime.format(EXPIRY_FORMAT),
+            "Share link generated successfully. Valid for " + hours + " hours."
         );
     }
     
     /**
-     * Download file using share token
-     * Validates token and checks expiry before allowing download
+     * Get the shared file for a download
+     * Validates token and checks expiry before allowing download.
+     * Resolved tokens are cached until they expire.
      */
-    public Resource downloadFileByToken(String token) {
-        // Find share token
-        ShareToken shareToken = shareTokenRepository.findByToken(token)
+    public SharedFile getSharedFile(String token) {
+        if (SignedLinkService.isSignedLink(token)) {
+            return new SharedFile(token, getSignedFile(signedLinkService.verify(token)), null);
+        }
+        
+        SharedFile cached = shareResolutionCache.get(token);
+        if (cached != null) {
+            return cached;
+        }
+        
+        // Find share token and its file in one query
+        long generation = shareResolutionCache.currentGeneration();
+        ShareToken shareToken = shareTokenRepository.findByTokenWithFile(token)
                 .orElseThrow(() -> new ResourceNotFoundException("Invalid share link"));
         
         // Check if token is expired
@@ -83,22 +174,87 @@ public class ShareService {
             throw new RuntimeException("Share link has expired");
         }
         
-        // Load and return file
-        FileEntity file = shareToken.getFile();
-        return fileService.loadFileAsResource(file.getFilePath());
+        shareResolutionCache.put(shareToken, generation);
+        return new SharedFile(token, shareToken.getFile(), shareToken.getMaxBytesPerSecond());
+    }
+    
+    /**
+     * Get the file behind a verified signed link
+     * Only a file not in the cache needs the database.
+     */
+    private FileEntity getSignedFile(SignedLinkService.SignedLink link) {
+        FileEntity cached = shareResolutionCache.getFile(link.getFileId());
+        if (cached != null) {
+            return cached;
+        }
+        
+        long generation = shareResolutionCache.currentGeneration();
+        FileEntity file = fileService.getFileById(link.getFileId());
+        shareResolutionCache.putFile(file, generation);
+        return file;
     }
     
     /**
-     * Get filename for download
+     * Revoke a share link
+     * Only the owner of the shared file can revoke its links
      */
-    public String getFilenameByToken(String token) {
-        ShareToken shareToken = shareTokenRepository.findByToken(token)
+    public void revokeShareLink(String token, String userEmail) {
+        if (SignedLinkService.isSignedLink(token)) {
+            SignedLinkService.SignedLink link = signedLinkService.parse(token);
+            if (!fileService.getFileById(link.getFileId()).getUploadedBy().getEmail().equals(userEmail)) {
+                throw new RuntimeException("You don't have permission to revoke this link");
+            }
+            signedLinkService.revoke(link);
+            return;
+        }
+        
+        ShareToken shareToken = shareTokenRepository.findByTokenWithFile(token)
                 .orElseThrow(() -> new ResourceNotFoundException("Invalid share link"));
         
-        if (shareToken.getExpiryTime().isBefore(LocalDateTime.now())) {
-            throw new RuntimeException("Share link has expired");
+        if (!shareToken.getFile().getUploadedBy().getEmail().equals(userEmail)) {
+            throw new RuntimeException("You don't have permission to revoke this link");
         }
         
-        return shareToken.getFile().getFilename();
+        shareTokenRepository.delete(shareToken);
+        shareResolutionCache.invalidate(token);
+    }
+    
+    /**
+     * Get the files behind several share links, in the order requested
+     * Every link must exist and be unexpired
+     */
+    public List<SharedFile> getSharedFiles(List<String> tokens) {
+        List<String> distinctTokens = tokens.stream().distinct().collect(Collectors.toList());
+        List<String> storedTokens = distinctTokens.stream()
+                .filter(token -> !SignedLinkService.isSignedLink(token))
+                .collect(Collectors.toList());
+        Map<String, ShareToken> shareTokens = storedTokens.isEmpty() ? Map.of()
+                : shareTokenRepository.findByTokenIn(storedTokens).stream()
+                        .collect(Collectors.toMap(ShareToken::getToken, Function.identity()));
+        
+        LocalDateTime now = LocalDateTime.now();
+        Set<Long> seenFiles = new HashSet<>();
+        List<SharedFile> files = new ArrayList<>();
+        for (String token : distinctTokens) {
+            if (SignedLinkService.isSignedLink(token)) {
+                FileEntity file = getSignedFile(signedLinkService.verify(token));
+                if (seenFiles.add(file.getId())) {
+                    files.add(new SharedFile(token, file, null));
+                }
+                continue;
+            }
+            ShareToken shareToken = shareTokens.get(token);
+            if (shareToken == null) {
+                throw new ResourceNotFoundException("Invalid share link");
+            }
+            if (shareToken.getExpiryTime().isBefore(now)) {
+                throw new RuntimeException("Share link has expired");
+            }
+            // Several links to one file put it in the bundle once
+            if (seenFiles.add(shareToken.getFile().getId())) {
+                files.add(new SharedFile(token, shareToken.getFile(), shareToken.getMaxBytesPerSecond()));
+            }
+        }
+        return files;
     }
 }
@@ -0,0 +1,34 @@
+package com.filesharing.service;
+
+import com.filesharing.entity.FileEntity;
+
+/**
+ * A file reached through a share link, with the link's download settings
+ */
+public class SharedFile {
+    
+    private final String token;
+    private final FileEntity file;
+    private final Long maxBytesPerSecond;
+    
+    public SharedFile(String token, FileEntity file, Long maxBytesPerSecond) {
+        this.token = token;
+        this.file = file;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+    
+    public String getToken() {
+        return token;
+    }
+    
+    public FileEntity getFile() {
+        return file;
+    }
+    
+    /**
+     * Bandwidth limit set on the link, or null for the default
+     */
+    public Long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+}
@@ -0,0 +1,230 @@
+package com.filesharing.service;
+
+import com.filesharing.entity.RevokedShareLink;
+import com.filesharing.exception.ResourceNotFoundException;
+import com.filesharing.repository.RevokedShareLinkRepository;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Service class for stateless, HMAC-signed share links
+ * A signed link carries the key ID, file ID, expiry and a random link ID,
+ * authenticated with HMAC-SHA256, so checking it is CPU work with no
+ * database lookup. Links are never stored; the few revoked before expiry
+ * are kept in an in-memory set, loaded from the database on startup and
+ * refreshed periodically to pick up revocations made on other nodes.
+ *
+ * Format: keyId.fileId.expiryEpochSeconds.linkId.signature, with the
+ * signature over everything before it, in unpadded base64url.
+ */
+@Service
+public class SignedLinkService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(SignedLinkService.class);
+    
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final String SEPARATOR = ".";
+    private static final int LINK_ID_BYTES = 16;
+    private static final int MIN_SECRET_LENGTH = 32;
+    
+    @Autowired
+    private RevokedShareLinkRepository revokedShareLinkRepository;
+    
+    @Value("${file.share.signed.keys}")
+    private List<String> keySpecs;
+    
+    @Value("${file.share.signed.active-key}")
+    private String activeKeyId;
+    
+    // Signing keys by ID; older keys stay listed to verify links issued with them
+    private final Map<String, SecretKeySpec> keys = new HashMap<>();
+    
+    // Link IDs of unexpired revoked links, by expiry in epoch seconds
+    private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+    
+    private final SecureRandom random = new SecureRandom();
+    
+    /**
+     * Parse the configured keys and load revocations
+     */
+    @PostConstruct
+    public void init() {
+        for (String spec : keySpecs) {
+            int colon = spec.indexOf(':');
+            if (colon <= 0) {
+                throw new IllegalStateException("Signing keys must be given as id:secret");
+            }
+            String keyId = spec.substring(0, colon).trim();
+            String secret = spec.substring(colon + 1).trim();
+            if (secret.length() < MIN_SECRET_LENGTH || keyId.contains(SEPARATOR)) {
+                throw new IllegalStateException("Signing key " + keyId
+                        + " needs a secret of at least " + MIN_SECRET_LENGTH + " characters and an ID without dots");
+            }
+            keys.put(keyId, new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM));
+        }
+        if (!keys.containsKey(activeKeyId)) {
+            throw new IllegalStateException("Active signing key " + activeKeyId + " is not configured");
+        }
+        refreshRevocations();
+    }
+    
+    /**
+     * Whether a share token is a signed link rather than a stored token
+     */
+    public static boolean isSignedLink(String token) {
+        return token.contains(SEPARATOR);
+    }
+    
+    /**
+     * Issue a signed link to a file with the active key
+     */
+    public String sign(Long fileId, LocalDateTime expiryTime) {
+        byte[] linkId = new byte[LINK_ID_BYTES];
+        random.nextBytes(linkId);
+        String payload = String.join(SEPARATOR, activeKeyId, fileId.toString(),
+                Long.toString(toEpochSecond(expiryTime)), encode(linkId));
+        return payload + SEPARATOR + encode(hmac(keys.get(activeKeyId), payload));
+    }
+    
+    /**
+     * Check a signed link for a download
+     * @return The link's contents
+     * @throws ResourceNotFoundException if the link is malformed, forged or revoked
+     */
+    public SignedLink verify(String token) {
+        SignedLink link = parse(token);
+        if (revoked.containsKey(link.linkId)) {
+            throw new ResourceNotFoundException("Invalid share link");
+        }
+        if (link.expiresAt <= Instant.now().getEpochSecond()) {
+            throw new RuntimeException("Share link has expired");
+        }
+        return link;
+    }
+    
+    /**
+     * Check a signed link's signature only, ignoring expiry and revocation
+     * @throws ResourceNotFoundException if the link is malformed or forged
+     */
+    public SignedLink parse(String token) {
+        String[] parts = token.split("\\.", -1);
+        if (parts.length != 5) {
+            throw new ResourceNotFoundException("Invalid share link");
+        }
+        SecretKeySpec key = keys.get(parts[0]);
+        if (key == null) {
+            throw new ResourceNotFoundException("Invalid share link");
+        }
+        
+        String payload = token.substring(0, token.lastIndexOf(SEPARATOR));
+        byte[] signature;
+        try {
+            signature = Base64.getUrlDecoder().decode(parts[4]);
+        } catch (IllegalArgumentException ex) {
+            throw new ResourceNotFoundException("Invalid share link");
+        }
+        // Constant-time comparison, so timing reveals nothing about the expected signature
+        if (!MessageDigest.isEqual(hmac(key, payload), signature)) {
+            throw new ResourceNotFoundException("Invalid share link");
+        }
+        
+        try {
+            return new SignedLink(parts[3], Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        } catch (NumberFormatException ex) {
+            throw new ResourceNotFoundException("Invalid share link");
+        }
+    }
+    
+    /**
+     * Revoke a signed link until it expires
+     */
+    public void revoke(SignedLink link) {
+        LocalDateTime expiryTime = LocalDateTime.ofInstant(Instant.ofEpochSecond(link.expiresAt), ZoneId.systemDefault());
+        if (!revokedShareLinkRepository.existsByLinkId(link.linkId)) {
+            revokedShareLinkRepository.save(
+                    new RevokedShareLink(null, link.linkId, expiryTime, LocalDateTime.now()));
+        }
+        revoked.put(link.linkId, link.expiresAt);
+    }
+    
+    /**
+     * Reload unexpired revocations, including those made on other nodes
+     * If the database is unavailable the current set is kept, so signed
+     * links keep working through maintenance windows.
+     */
+    @Scheduled(fixedDelayString = "${file.share.signed.revocation-refresh}", initialDelayString = "${file.share.signed.revocation-refresh}")
+    public void refreshRevocations() {
+        List<RevokedShareLink> current;
+        try {
+            current = revokedShareLinkRepository.findByExpiryTimeAfter(LocalDateTime.now());
+        } catch (DataAccessException ex) {
+            logger.warn("Could not refresh revoked share links; keeping {} known revocations", revoked.size(), ex);
+            return;
+        }
+        
+        long now = Instant.now().getEpochSecond();
+        for (RevokedShareLink link : current) {
+            revoked.put(link.getLinkId(), toEpochSecond(link.getExpiryTime()));
+        }
+        // Expired links are rejected anyway, so their revocations can go
+        revoked.values().removeIf(expiresAt -> expiresAt <= now);
+    }
+    
+    private static byte[] hmac(SecretKeySpec key, String payload) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(HMAC_ALGORITHM + " is not available", ex);
+        }
+    }
+    
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+    
+    private static long toEpochSecond(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toEpochSecond();
+    }
+    
+    /**
+     * Contents of a verified signed link
+     */
+    public static class SignedLink {
+        
+        private final String linkId;
+        private final Long fileId;
+        private final long expiresAt;
+        
+        SignedLink(String linkId, Long fileId, long expiresAt) {
+            this.linkId = linkId;
+            this.fileId = fileId;
+            this.expiresAt = expiresAt;
+        }
+        
+        public Long getFileId() {
+            return fileId;
+        }
+    }
+}
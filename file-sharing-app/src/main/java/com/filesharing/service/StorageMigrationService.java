@@ -0,0 +1,104 @@
+package com.filesharing.service;
+
+import com.filesharing.storage.StoragePathResolver;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Service class for moving files from the flat upload layout into shards
+ * Runs online in small batches; files keep resolving from their old location
+ * until they are moved, and each move is a single rename within one filesystem.
+ */
+@Service
+public class StorageMigrationService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(StorageMigrationService.class);
+    
+    @Autowired
+    private StoragePathResolver storagePathResolver;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${file.upload.migration.enabled}")
+    private boolean enabled;
+    
+    @Value("${file.upload.migration.batch-size}")
+    private int batchSize;
+    
+    private Counter migratedFiles;
+    private volatile boolean finished;
+    
+    /**
+     * Register migration metrics
+     */
+    @PostConstruct
+    public void init() {
+        this.migratedFiles = Counter.builder("file.storage.migrated")
+                .description("Files moved from the flat upload layout into shards")
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Move the next batch of flat files into the sharded layout
+     */
+    @Scheduled(fixedDelayString = "${file.upload.migration.interval}")
+    public void migrateBatch() {
+        if (!enabled || finished) {
+            return;
+        }
+        
+        try {
+            int moved = migrate(batchSize);
+            if (moved > 0) {
+                logger.info("Moved {} files into the sharded upload layout", moved);
+            } else {
+                logger.info("Upload directory migration complete");
+                finished = true;
+            }
+        } catch (IOException ex) {
+            logger.error("Upload directory migration failed; will retry", ex);
+        }
+    }
+    
+    /**
+     * Move up to limit files from the top of the upload directory into their shards
+     * The directory is streamed, so memory use does not depend on its size
+     * @return Number of files moved
+     */
+    public int migrate(int limit) throws IOException {
+        Path root = storagePathResolver.getUploadRoot();
+        int moved = 0;
+        
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root, Files::isRegularFile)) {
+            for (Path entry : entries) {
+                if (moved >= limit) {
+                    break;
+                }
+                String name = entry.getFileName().toString();
+                // Skip in-flight uploads and hidden bookkeeping files
+                if (name.endsWith(FileService.TEMP_SUFFIX) || name.startsWith(".")) {
+                    continue;
+                }
+                
+                Path target = storagePathResolver.prepareTarget(name);
+                Files.move(entry, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                migratedFiles.increment();
+                moved++;
+            }
+        }
+        return moved;
+    }
+}
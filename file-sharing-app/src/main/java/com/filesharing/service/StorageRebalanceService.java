@@ -0,0 +1,89 @@
+package com.filesharing.service;
+
+import com.filesharing.storage.StorageBackend;
+import com.filesharing.storage.StripedStorageBackend;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import java.io.IOException;
+
+/**
+ * Service class for spreading stored objects after a storage root is added
+ * Runs online in small batches against the striped backend; objects stay
+ * readable from their old root until they have been copied into place.
+ * Replicas missed by writes while a root was failing are repaired on every
+ * run, whether or not a rebalance is enabled. Copies of blobs hold the
+ * blob's row lock, so a concurrent release cannot leave one behind.
+ */
+@Service
+public class StorageRebalanceService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(StorageRebalanceService.class);
+    
+    @Autowired
+    private StorageBackend storageBackend;
+    
+    @Autowired
+    private BlobService blobService;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${storage.striped.rebalance.enabled}")
+    private boolean enabled;
+    
+    @Value("${storage.striped.rebalance.batch-size}")
+    private int batchSize;
+    
+    private Counter rebalancedObjects;
+    private volatile boolean finished;
+    
+    /**
+     * Register rebalance metrics
+     */
+    @PostConstruct
+    public void init() {
+        this.rebalancedObjects = Counter.builder("file.storage.rebalanced")
+                .description("Objects copied or moved onto their storage roots")
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Repair short replicas, then fix the placement of the next batch of objects
+     */
+    @Scheduled(fixedDelayString = "${storage.striped.rebalance.interval}")
+    public void rebalanceBatch() {
+        if (!(storageBackend instanceof StripedStorageBackend striped)) {
+            return;
+        }
+        
+        try {
+            int repaired = striped.repairReplicas(batchSize, blobService::whileReferenced);
+            rebalancedObjects.increment(repaired);
+            if (repaired > 0) {
+                logger.info("Repaired {} under-replicated objects", repaired);
+            }
+            if (!enabled || finished) {
+                return;
+            }
+            
+            int fixed = striped.rebalance(batchSize, blobService::whileReferenced);
+            rebalancedObjects.increment(fixed);
+            if (fixed > 0) {
+                logger.info("Rebalanced {} objects across storage roots", fixed);
+            }
+            if (striped.isRebalanced()) {
+                logger.info("Storage rebalance complete");
+                finished = true;
+            }
+        } catch (IOException ex) {
+            logger.error("Storage rebalance failed; will retry", ex);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package com.filesharing.service;
+
+import com.filesharing.entity.FileEntity;
+import com.filesharing.exception.FileStorageException;
+import com.filesharing.exception.ResourceNotFoundException;
+import com.filesharing.storage.StorageBackend;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Service class for image thumbnails
+ * Thumbnails are decoded with ImageIO source subsampling, so only a fraction
+ * of the original's pixels are ever materialized, and kept in a size-bounded
+ * LRU cache on disk keyed by content hash and width. Concurrent requests for
+ * the same missing thumbnail share a single generation.
+ */
+@Service
+public class ThumbnailService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(ThumbnailService.class);
+    
+    private static final Set<String> IMAGE_TYPES = Set.of("jpg", "png");
+    
+    // Upper bound on decoded pixels, so very tall or wide images are subsampled harder
+    private static final long MAX_DECODED_PIXELS = 16L * 1024 * 1024;
+    
+    @Autowired
+    private StorageBackend storageBackend;
+    
+    @Autowired
+    private CompressionService compressionService;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${file.thumbnail.cache-dir}")
+    private String cacheDir;
+    
+    @Value("${file.thumbnail.cache-max-size}")
+    private DataSize maxCacheSize;
+    
+    @Value("${file.thumbnail.widths}")
+    private int[] widths;
+    
+    private Path cacheRoot;
+    
+    // Cached thumbnails and their sizes in access order, eldest first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    
+    // Generations in progress, so each missing thumbnail is rendered once
+    private final Map<String, CompletableFuture<Thumbnail>> inFlight = new ConcurrentHashMap<>();
+    
+    private Counter hits;
+    private Counter misses;
+    private Counter evictions;
+    
+    /**
+     * Rebuild the cache index from disk and register cache metrics
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        cacheRoot = Paths.get(cacheDir).toAbsolutePath().normalize();
+        Files.createDirectories(cacheRoot);
+        
+        // Oldest first, so the least recently written thumbnails are evicted first
+        List<Path> existing = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheRoot)) {
+            files.forEach(existing::add);
+        }
+        existing.sort(Comparator.comparing(this::lastModified));
+        for (Path path : existing) {
+            String name = path.getFileName().toString();
+            if (name.endsWith(FileService.TEMP_SUFFIX)) {
+                Files.deleteIfExists(path);
+            } else {
+                addEntry(name, Files.size(path));
+            }
+        }
+        
+        this.hits = Counter.builder("file.thumbnail.requests")
+                .description("Thumbnail requests by cache outcome")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.misses = Counter.builder("file.thumbnail.requests")
+                .description("Thumbnail requests by cache outcome")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        this.evictions = Counter.builder("file.thumbnail.evictions")
+                .description("Thumbnails evicted from the disk cache")
+                .register(meterRegistry);
+        Gauge.builder("file.thumbnail.cache.bytes", this, service -> service.getCachedBytes())
+                .description("Bytes held by the thumbnail cache")
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Whether thumbnails can be made for a file
+     */
+    public boolean supports(FileEntity file) {
+        return IMAGE_TYPES.contains(file.getFileType().toLowerCase());
+    }
+    
+    /**
+     * Get a thumbnail of an image, rendering and caching it on a miss
+     * @param width Requested width; rounded up to the nearest configured width
+     */
+    public Thumbnail getThumbnail(FileEntity file, int width) throws IOException {
+        if (!supports(file)) {
+            throw new ResourceNotFoundException("No thumbnail available for this file");
+        }
+        int bucket = bucketFor(width);
+        String key = cacheKey(file, bucket);
+        MediaType mediaType = isPng(file) ? MediaType.IMAGE_PNG : MediaType.IMAGE_JPEG;
+        
+        byte[] cached = readCached(key);
+        if (cached != null) {
+            hits.increment();
+            return new Thumbnail(cached, mediaType, bucket);
+        }
+        misses.increment();
+        
+        CompletableFuture<Thumbnail> mine = new CompletableFuture<>();
+        CompletableFuture<Thumbnail> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            byte[] data = render(file, bucket);
+            writeCached(key, data);
+            Thumbnail thumbnail = new Thumbnail(data, mediaType, bucket);
+            mine.complete(thumbnail);
+            return thumbnail;
+        } catch (IOException | RuntimeException ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key);
+        }
+    }
+    
+    /**
+     * Bytes currently held by the cache
+     */
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+    
+    /**
+     * Decode an image with subsampling and scale it to the target width
+     */
+    private byte[] render(FileEntity file, int width) throws IOException {
+        BufferedImage source;
+        Path local = file.getContentEncoding() == null ? storageBackend.localPath(file.getFilePath()) : null;
+        if (local != null) {
+            // A file lets the reader seek instead of buffering the stream
+            try (ImageInputStream iis = ImageIO.createImageInputStream(local.toFile())) {
+                source = decodeSubsampled(iis, width);
+            }
+        } else {
+            try (InputStream in = compressionService.decode(storageBackend.get(file.getFilePath()), file.getContentEncoding());
+                 ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+                source = decodeSubsampled(iis, width);
+            }
+        }
+        
+        // Never upscale
+        int targetWidth = Math.min(width, source.getWidth());
+        int targetHeight = Math.max(1, (int) Math.round((double) source.getHeight() * targetWidth / source.getWidth()));
+        boolean png = isPng(file);
+        BufferedImage thumbnail = new BufferedImage(targetWidth, targetHeight,
+                png ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = thumbnail.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(source, 0, 0, targetWidth, targetHeight, null);
+        } finally {
+            graphics.dispose();
+        }
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(thumbnail, png ? "png" : "jpg", out)) {
+            throw new FileStorageException("No image writer available for thumbnails");
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * Read the first image, skipping source pixels so roughly twice the target width is decoded
+     */
+    private BufferedImage decodeSubsampled(ImageInputStream iis, int width) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            throw new ResourceNotFoundException("No thumbnail available for this file");
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(iis, true, true);
+            int sourceWidth = reader.getWidth(0);
+            int sourceHeight = reader.getHeight(0);
+            
+            int step = Math.max(1, sourceWidth / (width * 2));
+            while ((long) (sourceWidth / step) * (sourceHeight / step) > MAX_DECODED_PIXELS) {
+                step++;
+            }
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(step, step, 0, 0);
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
+        }
+    }
+    
+    /**
+     * Read a cached thumbnail, marking it recently used
+     * @return The thumbnail, or null if it is not cached
+     */
+    private byte[] readCached(String key) throws IOException {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                return null;
+            }
+        }
+        try {
+            return Files.readAllBytes(cacheRoot.resolve(key));
+        } catch (NoSuchFileException ex) {
+            // Evicted between the lookup and the read
+            return null;
+        }
+    }
+    
+    /**
+     * Store a rendered thumbnail and evict the least recently used ones over budget
+     */
+    private void writeCached(String key, byte[] data) throws IOException {
+        Path target = cacheRoot.resolve(key);
+        Path temp = cacheRoot.resolve(key + FileService.TEMP_SUFFIX);
+        Files.write(temp, data);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        
+        List<String> victims;
+        synchronized (this) {
+            victims = addEntry(key, data.length);
+        }
+        for (String victim : victims) {
+            Files.deleteIfExists(cacheRoot.resolve(victim));
+            evictions.increment();
+        }
+    }
+    
+    /**
+     * Index a cached thumbnail
+     * @return Keys evicted to stay within the byte budget
+     */
+    private synchronized List<String> addEntry(String key, long size) {
+        Long previous = entries.put(key, size);
+        cachedBytes += size - (previous == null ? 0 : previous);
+        
+        List<String> victims = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (cachedBytes > maxCacheSize.toBytes() && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            if (entry.getKey().equals(key)) {
+                continue;
+            }
+            cachedBytes -= entry.getValue();
+            victims.add(entry.getKey());
+            eldest.remove();
+        }
+        return victims;
+    }
+    
+    /**
+     * Wait for another request's generation of the same thumbnail
+     */
+    private Thumbnail await(CompletableFuture<Thumbnail> running) throws IOException {
+        try {
+            return running.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof IOException io) {
+                throw io;
+            }
+            if (ex.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw ex;
+        }
+    }
+    
+    /**
+     * Round a requested width up to the nearest configured width
+     */
+    private int bucketFor(int width) {
+        for (int bucket : widths) {
+            if (bucket >= width) {
+                return bucket;
+            }
+        }
+        return widths[widths.length - 1];
+    }
+    
+    /**
+     * Cache key for a thumbnail
+     * Content-hashed files share thumbnails across duplicates and never go stale
+     */
+    private String cacheKey(FileEntity file, int width) {
+        String source = file.getContentHash() != null ? file.getContentHash() : "file-" + file.getId();
+        return source + "-w" + width + (isPng(file) ? ".png" : ".jpg");
+    }
+    
+    private boolean isPng(FileEntity file) {
+        return "png".equalsIgnoreCase(file.getFileType());
+    }
+    
+    private long lastModified(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).lastModifiedTime().toMillis();
+        } catch (IOException ex) {
+            return 0L;
+        }
+    }
+    
+    /**
+     * A rendered thumbnail
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Thumbnail {
+        
+        private final byte[] data;
+        private final MediaType mediaType;
+        private final int width;
+    }
+}
@@ -0,0 +1,100 @@
+package com.filesharing.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket
+ * The whole state is one AtomicLong: the time at which the bucket will be
+ * full again. Taking tokens pushes that time forward by their refill time
+ * with a single compare-and-set, and the bucket holds as many tokens as the
+ * time until then leaves room for. This is the generic cell rate algorithm,
+ * which behaves exactly like a token bucket without a refill thread or lock.
+ * Debt taken on by acquire is limited to one bucket's worth.
+ */
+public class TokenBucket {
+    
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    
+    private final long tokensPerSecond;
+    private final long capacityNanos;
+    
+    private final AtomicLong fullAt;
+    
+    /**
+     * @param tokensPerSecond Refill rate
+     * @param capacity Most tokens the bucket holds; a new bucket is full
+     */
+    public TokenBucket(long tokensPerSecond, long capacity) {
+        this.tokensPerSecond = tokensPerSecond;
+        this.capacityNanos = refillNanos(capacity);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+    
+    /**
+     * Take tokens if the bucket has them
+     * @return Whether the tokens were taken
+     */
+    public boolean tryAcquire(long tokens) {
+        long cost = refillNanos(tokens);
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long next = Math.max(current, now) + cost;
+            if (next - now > capacityNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Take tokens whether or not the bucket has them, going into debt
+     * Refused while the bucket already owes a full bucket's worth, so waits
+     * stay bounded however many callers share it.
+     * @return Nanoseconds to wait before using the tokens, or -1 if none were
+     *         taken; wait for nanosUntilAvailable and try again
+     */
+    public long acquire(long tokens) {
+        long cost = refillNanos(tokens);
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            if (current - now > 2 * capacityNanos) {
+                return -1;
+            }
+            long next = Math.max(current, now) + cost;
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now - capacityNanos);
+            }
+        }
+    }
+    
+    /**
+     * Nanoseconds until the given number of tokens will be available
+     */
+    public long nanosUntilAvailable(long tokens) {
+        long now = System.nanoTime();
+        return Math.max(0, Math.max(fullAt.get(), now) + refillNanos(tokens) - now - capacityNanos);
+    }
+    
+    /**
+     * Whether the bucket has refilled completely, so dropping it loses nothing
+     */
+    public boolean isFull() {
+        return fullAt.get() - System.nanoTime() <= 0;
+    }
+    
+    /**
+     * Time to refill tokens, rounded up, computed exactly rather than from a
+     * truncated per-token time
+     */
+    private long refillNanos(long tokens) {
+        if (tokens > Long.MAX_VALUE / NANOS_PER_SECOND) {
+            return Long.MAX_VALUE / 4;
+        }
+        return (tokens * NANOS_PER_SECOND + tokensPerSecond - 1) / tokensPerSecond;
+    }
+}
@@ -0,0 +1,81 @@
+package com.filesharing.storage;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count-min sketch of recent access frequencies, as used by TinyLFU admission
+ * Counters saturate at 15 and are all halved once the number of recorded
+ * accesses reaches ten times the sketch width, so old popularity fades.
+ */
+class FrequencySketch {
+    
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+    
+    private final AtomicIntegerArray counters;
+    private final int mask;
+    private final long sampleSize;
+    private final AtomicLong additions = new AtomicLong();
+    
+    /**
+     * @param expectedItems Roughly how many distinct items should be told apart
+     */
+    FrequencySketch(int expectedItems) {
+        int width = Integer.highestOneBit(Math.max(64, expectedItems * 2 - 1)) << 1;
+        this.counters = new AtomicIntegerArray(width * DEPTH);
+        this.mask = width - 1;
+        this.sampleSize = 10L * width;
+    }
+    
+    /**
+     * Record one access to an item
+     */
+    void increment(Object item) {
+        int hash = spread(item.hashCode());
+        for (int row = 0; row < DEPTH; row++) {
+            int index = indexOf(hash, row);
+            int count;
+            do {
+                count = counters.get(index);
+            } while (count < MAX_COUNT && !counters.compareAndSet(index, count, count + 1));
+        }
+        if (additions.incrementAndGet() >= sampleSize) {
+            reset();
+        }
+    }
+    
+    /**
+     * Estimated recent access count of an item
+     */
+    int frequency(Object item) {
+        int hash = spread(item.hashCode());
+        int min = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters.get(indexOf(hash, row)));
+        }
+        return min;
+    }
+    
+    /**
+     * Halve every counter; racing increments may be lost, which only blurs the estimate
+     */
+    private void reset() {
+        additions.set(0);
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, counters.get(i) >>> 1);
+        }
+    }
+    
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * SEEDS[row];
+        return row * (mask + 1) + ((h ^ (h >>> 16)) & mask);
+    }
+    
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xED5AD4BB;
+        return hash ^ (hash >>> 11);
+    }
+}
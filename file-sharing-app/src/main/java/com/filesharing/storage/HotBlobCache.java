@@ -0,0 +1,252 @@
+package com.filesharing.storage;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process cache of small, frequently downloaded stored objects
+ * Content is held in direct buffers outside the Java heap, so a popular link
+ * costs no GC work and no disk reads once cached. Admission is TinyLFU-style:
+ * an object only displaces others if it has been requested more often
+ * recently than every object it would evict. Entries are keyed by storage
+ * key, whose content never changes, so only deletes need to invalidate.
+ * Evicted buffers are freed by the garbage collector once no response is
+ * still writing from them.
+ */
+@Component
+public class HotBlobCache {
+    
+    @Autowired
+    private StorageBackend storageBackend;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${file.cache.hot-blobs.enabled}")
+    private boolean enabled;
+    
+    @Value("${file.cache.hot-blobs.max-size}")
+    private DataSize maxSize;
+    
+    @Value("${file.cache.hot-blobs.max-entry-size}")
+    private DataSize maxEntrySize;
+    
+    private final Map<String, ByteBuffer> entries = new ConcurrentHashMap<>();
+    
+    // Sizes of cached and loading objects, oldest first; guarded by this
+    private final LinkedHashMap<String, Long> reserved = new LinkedHashMap<>();
+    private long usedBytes;
+    
+    private FrequencySketch sketch;
+    
+    private Counter hits;
+    private Counter misses;
+    private Counter evictions;
+    private Counter rejections;
+    
+    /**
+     * Size the frequency sketch and register cache metrics
+     */
+    @PostConstruct
+    public void init() {
+        // Enough counters to tell apart a few times as many objects as fit
+        int capacity = (int) Math.min(1 << 20, Math.max(1, maxSize.toBytes() / Math.max(1, maxEntrySize.toBytes() / 4)));
+        this.sketch = new FrequencySketch(capacity * 4);
+        
+        this.hits = Counter.builder("file.cache.hot-blobs.requests")
+                .description("Hot blob cache lookups by outcome")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.misses = Counter.builder("file.cache.hot-blobs.requests")
+                .description("Hot blob cache lookups by outcome")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        this.evictions = Counter.builder("file.cache.hot-blobs.evictions")
+                .description("Objects evicted from the hot blob cache")
+                .register(meterRegistry);
+        this.rejections = Counter.builder("file.cache.hot-blobs.rejections")
+                .description("Objects refused admission as less popular than the objects they would evict")
+                .register(meterRegistry);
+        Gauge.builder("file.cache.hot-blobs.bytes", this, HotBlobCache::getUsedBytes)
+                .description("Off-heap bytes held by the hot blob cache")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Look up a stored object, recording the access on a hit
+     * Misses are recorded by {@link #admit}, which knows the stored size.
+     * @return A read-only view of the cached content, or null on a miss
+     */
+    public ByteBuffer get(String key) {
+        if (!enabled) {
+            return null;
+        }
+        ByteBuffer cached = entries.get(key);
+        if (cached == null) {
+            return null;
+        }
+        sketch.increment(key);
+        hits.increment();
+        return cached.duplicate();
+    }
+    
+    /**
+     * Load an object into the cache if it is popular enough to earn the space
+     * Call after a miss; records the access, and the object is read from the
+     * storage backend when admitted.
+     * @param size Stored size of the object, used to skip objects too large to cache
+     * @return A read-only view of the cached content, or null if not admitted
+     */
+    public ByteBuffer admit(String key, long size) throws IOException {
+        if (!enabled || size > maxEntrySize.toBytes() || size > maxSize.toBytes()) {
+            return null;
+        }
+        sketch.increment(key);
+        misses.increment();
+        synchronized (this) {
+            // Another request is already loading it; not a rejection
+            if (reserved.containsKey(key)) {
+                return null;
+            }
+            if (!reserve(key, size)) {
+                rejections.increment();
+                return null;
+            }
+        }
+        
+        ByteBuffer buffer;
+        try {
+            buffer = load(key, size);
+        } catch (IOException | RuntimeException ex) {
+            release(key, size);
+            throw ex;
+        }
+        synchronized (this) {
+            // Not cached if invalidated while loading
+            if (reserved.containsKey(key)) {
+                entries.put(key, buffer);
+            }
+        }
+        return buffer.duplicate();
+    }
+    
+    /**
+     * Drop an object, e.g. because its stored content was deleted
+     */
+    public void invalidate(String key) {
+        synchronized (this) {
+            entries.remove(key);
+            Long size = reserved.remove(key);
+            if (size != null) {
+                usedBytes -= size;
+            }
+        }
+    }
+    
+    /**
+     * Off-heap bytes held by cached objects
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+    
+    /**
+     * Wrap cached content in an input stream, e.g. to decode it
+     */
+    public static InputStream asInputStream(ByteBuffer buffer) {
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+            }
+            
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+                int count = Math.min(length, buffer.remaining());
+                buffer.get(bytes, offset, count);
+                return count;
+            }
+        };
+    }
+    
+    /**
+     * Claim space for an object, evicting less popular ones
+     * Oldest entries are considered first; one that is more popular than the
+     * candidate is moved to the back instead and the candidate is refused.
+     * @return true if the space is now reserved for the key
+     */
+    private synchronized boolean reserve(String key, long size) {
+        long limit = maxSize.toBytes();
+        int frequency = sketch.frequency(key);
+        
+        List<String> victims = new ArrayList<>();
+        long freed = 0;
+        Iterator<Map.Entry<String, Long>> oldest = reserved.entrySet().iterator();
+        while (usedBytes - freed + size > limit && oldest.hasNext()) {
+            Map.Entry<String, Long> victim = oldest.next();
+            if (sketch.frequency(victim.getKey()) >= frequency) {
+                // Second chance for the more popular entry
+                oldest.remove();
+                reserved.put(victim.getKey(), victim.getValue());
+                return false;
+            }
+            victims.add(victim.getKey());
+            freed += victim.getValue();
+        }
+        
+        for (String victim : victims) {
+            reserved.remove(victim);
+            entries.remove(victim);
+            evictions.increment();
+        }
+        usedBytes += size - freed;
+        reserved.put(key, size);
+        return true;
+    }
+    
+    /**
+     * Give back space reserved for an object that failed to load
+     */
+    private synchronized void release(String key, long size) {
+        if (reserved.remove(key) != null) {
+            usedBytes -= size;
+        }
+    }
+    
+    /**
+     * Read an object into a new direct buffer
+     */
+    private ByteBuffer load(String key, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        try (ReadableByteChannel channel = Channels.newChannel(storageBackend.get(key))) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new EOFException("Stored object " + key + " is shorter than " + size + " bytes");
+                }
+            }
+        }
+        return buffer.flip().asReadOnlyBuffer();
+    }
+}
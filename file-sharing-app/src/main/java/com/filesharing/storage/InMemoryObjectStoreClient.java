@@ -0,0 +1,72 @@
+package com.filesharing.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-process stand-in for an S3-compatible object store
+ * Keeps objects on the heap; meant for local runs and benchmarks of the
+ * object storage backend without a real bucket.
+ */
+public class InMemoryObjectStoreClient implements ObjectStoreClient {
+    
+    private final ConcurrentNavigableMap<String, StoredBytes> objects = new ConcurrentSkipListMap<>();
+    
+    @Override
+    public void putObject(String key, Path source) throws IOException {
+        objects.put(key, new StoredBytes(Files.readAllBytes(source), System.currentTimeMillis()));
+    }
+    
+    @Override
+    public InputStream getObject(String key, long offset, long length) {
+        StoredBytes object = objects.get(key);
+        if (object == null) {
+            return null;
+        }
+        int start = (int) Math.min(offset, object.data.length);
+        int count = length < 0 ? object.data.length - start : (int) Math.min(length, object.data.length - start);
+        return new ByteArrayInputStream(object.data, start, count);
+    }
+    
+    @Override
+    public boolean deleteObject(String key) {
+        return objects.remove(key) != null;
+    }
+    
+    @Override
+    public StoredObject headObject(String key) {
+        StoredBytes object = objects.get(key);
+        return object == null ? null : new StoredObject(object.data.length, object.lastModified);
+    }
+    
+    @Override
+    public List<String> listObjects(String prefix, String startAfter, int limit) {
+        ConcurrentNavigableMap<String, StoredBytes> tail = startAfter == null || startAfter.compareTo(prefix) < 0
+                ? objects.tailMap(prefix, true)
+                : objects.tailMap(startAfter, false);
+        return tail.keySet().stream()
+                .takeWhile(key -> key.startsWith(prefix))
+                .limit(limit)
+                .toList();
+    }
+    
+    /**
+     * Object content with its upload time
+     */
+    private static class StoredBytes {
+        
+        private final byte[] data;
+        private final long lastModified;
+        
+        StoredBytes(byte[] data, long lastModified) {
+            this.data = data;
+            this.lastModified = lastModified;
+        }
+    }
+}
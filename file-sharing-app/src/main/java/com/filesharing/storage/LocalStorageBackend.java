@@ -0,0 +1,166 @@
+package com.filesharing.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Storage backend on the local filesystem
+ * Uses the sharded upload directory layout and exposes files for zero-copy serving
+ */
+public class LocalStorageBackend implements StorageBackend {
+    
+    private static final String TEMP_SUFFIX = ".part";
+    
+    protected final StoragePathResolver storagePathResolver;
+    
+    public LocalStorageBackend(StoragePathResolver storagePathResolver) {
+        this.storagePathResolver = storagePathResolver;
+    }
+    
+    @Override
+    public void put(String key, Path source) throws IOException {
+        Files.move(source, storagePathResolver.prepareTarget(key),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    @Override
+    public InputStream get(String key) throws IOException {
+        return Files.newInputStream(require(key));
+    }
+    
+    @Override
+    public InputStream getRange(String key, long offset, long length) throws IOException {
+        FileChannel channel = FileChannel.open(require(key), StandardOpenOption.READ);
+        channel.position(offset);
+        return new RangeInputStream(Channels.newInputStream(channel), length);
+    }
+    
+    @Override
+    public boolean delete(String key) throws IOException {
+        boolean deleted = Files.deleteIfExists(storagePathResolver.getShardedPath(key));
+        return Files.deleteIfExists(storagePathResolver.getLegacyPath(key)) || deleted;
+    }
+    
+    @Override
+    public StoredObject stat(String key) throws IOException {
+        Path path = storagePathResolver.resolveExisting(key);
+        if (path == null) {
+            return null;
+        }
+        return new StoredObject(Files.size(path), Files.getLastModifiedTime(path).toMillis());
+    }
+    
+    @Override
+    public Path localPath(String key) {
+        return storagePathResolver.resolveExisting(key);
+    }
+    
+    /**
+     * Walks the shard directories in order and lists one at a time, so memory
+     * use is bounded by the largest shard plus any files still in the flat
+     * layout. Keys are ordered by shard, then name, which for the hex names
+     * this application stores is key order; flat-layout files are merged in
+     * at the shard they will be migrated to, so the cursor covers both.
+     */
+    @Override
+    public List<String> listKeys(String startAfter, int limit) throws IOException {
+        Path root = storagePathResolver.getUploadRoot();
+        String after = startAfter != null ? position(root, startAfter) : "";
+        String afterShard = startAfter != null ? after.substring(0, after.lastIndexOf('/')) : "";
+        
+        List<String> legacy = new ArrayList<>();
+        for (Path file : sortedEntries(root, Files::isRegularFile)) {
+            String key = file.getFileName().toString();
+            if (listable(key) && position(root, key).compareTo(after) > 0) {
+                legacy.add(key);
+            }
+        }
+        legacy.sort(Comparator.comparing(key -> position(root, key)));
+        
+        List<String> keys = new ArrayList<>();
+        int nextLegacy = 0;
+        for (Path outer : sortedEntries(root, Files::isDirectory)) {
+            for (Path inner : sortedEntries(outer, Files::isDirectory)) {
+                String shard = outer.getFileName() + "/" + inner.getFileName();
+                if (shard.compareTo(afterShard) < 0) {
+                    continue;
+                }
+                for (Path file : sortedEntries(inner, Files::isRegularFile)) {
+                    String key = file.getFileName().toString();
+                    String keyPosition = shard + "/" + key;
+                    // Skip in-flight writes, hidden files, and keys up to the cursor
+                    if (!listable(key) || keyPosition.compareTo(after) <= 0) {
+                        continue;
+                    }
+                    // Flat-layout files that sort before this one come first
+                    while (nextLegacy < legacy.size()
+                            && position(root, legacy.get(nextLegacy)).compareTo(keyPosition) <= 0) {
+                        String legacyKey = legacy.get(nextLegacy++);
+                        if (!legacyKey.equals(key)) {
+                            keys.add(legacyKey);
+                            if (keys.size() == limit) {
+                                return keys;
+                            }
+                        }
+                    }
+                    keys.add(key);
+                    if (keys.size() == limit) {
+                        return keys;
+                    }
+                }
+            }
+        }
+        while (nextLegacy < legacy.size() && keys.size() < limit) {
+            keys.add(legacy.get(nextLegacy++));
+        }
+        return keys;
+    }
+    
+    /**
+     * Whether a stored name is a key rather than an in-flight write or hidden file
+     */
+    private static boolean listable(String name) {
+        return !name.endsWith(TEMP_SUFFIX) && !name.startsWith(".");
+    }
+    
+    /**
+     * Sort position of a key: its shard directories, then its name
+     */
+    private String position(Path root, String key) {
+        return root.relativize(storagePathResolver.getShardedPath(key)).toString().replace('\\', '/');
+    }
+    
+    /**
+     * Entries of a directory sorted by name
+     */
+    private static List<Path> sortedEntries(Path dir, DirectoryStream.Filter<Path> filter) throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, filter)) {
+            stream.forEach(entries::add);
+        }
+        entries.sort(Comparator.comparing(path -> path.getFileName().toString()));
+        return entries;
+    }
+    
+    /**
+     * Resolve a key to an existing file
+     */
+    protected Path require(String key) throws IOException {
+        Path path = storagePathResolver.resolveExisting(key);
+        if (path == null) {
+            throw new NoSuchFileException(key);
+        }
+        return path;
+    }
+}
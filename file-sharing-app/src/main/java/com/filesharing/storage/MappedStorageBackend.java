@@ -0,0 +1,107 @@
+package com.filesharing.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Storage backend that reads local files through memory mappings
+ * Shares the local directory layout; reads walk the file in mapped windows
+ * instead of issuing read calls, which suits small hot files served repeatedly.
+ * Files are not exposed for sendfile, so downloads exercise the mapped path.
+ */
+public class MappedStorageBackend extends LocalStorageBackend {
+    
+    // Mapped a window at a time so huge files never need one giant mapping
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+    
+    public MappedStorageBackend(StoragePathResolver storagePathResolver) {
+        super(storagePathResolver);
+    }
+    
+    @Override
+    public InputStream get(String key) throws IOException {
+        Path path = require(key);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new MappedInputStream(path, 0, channel.size());
+        }
+    }
+    
+    @Override
+    public InputStream getRange(String key, long offset, long length) throws IOException {
+        return new MappedInputStream(require(key), offset, length);
+    }
+    
+    @Override
+    public Path localPath(String key) {
+        return null;
+    }
+    
+    /**
+     * Input stream over consecutive read-only mappings of a file region
+     */
+    private static class MappedInputStream extends InputStream {
+        
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+        private MappedByteBuffer window;
+        
+        MappedInputStream(Path path, long offset, long length) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.position = offset;
+            this.end = Math.min(offset + length, channel.size());
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (!ensureWindow()) {
+                return -1;
+            }
+            return window.get() & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!ensureWindow()) {
+                return -1;
+            }
+            int count = Math.min(length, window.remaining());
+            window.get(buffer, offset, count);
+            return count;
+        }
+        
+        @Override
+        public int available() {
+            return window == null ? 0 : window.remaining();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            window = null;
+            channel.close();
+        }
+        
+        /**
+         * Map the next window once the current one is used up
+         */
+        private boolean ensureWindow() throws IOException {
+            if (window != null && window.hasRemaining()) {
+                return true;
+            }
+            if (position >= end) {
+                return false;
+            }
+            long size = Math.min(WINDOW_SIZE, end - position);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            position += size;
+            return true;
+        }
+    }
+}
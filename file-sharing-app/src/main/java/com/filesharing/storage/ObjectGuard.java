@@ -0,0 +1,27 @@
+package com.filesharing.storage;
+
+import java.io.IOException;
+
+/**
+ * Guard for background copies of stored objects
+ * Copying an object between locations must not race its deletion, or the
+ * copy outlives the delete and brings back bytes nothing references. The
+ * guard runs the copy only while the object is still wanted and cannot be
+ * deleted.
+ */
+@FunctionalInterface
+public interface ObjectGuard {
+    
+    /**
+     * Run a copy of an object while it cannot be deleted
+     * @param key Storage key of the object
+     * @return false if the object is no longer wanted and the copy did not run
+     */
+    boolean whileReferenced(String key, Copy copy) throws IOException;
+    
+    @FunctionalInterface
+    interface Copy {
+        
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,74 @@
+package com.filesharing.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Storage backend on an S3-compatible object store
+ * Objects are stored under an optional key prefix; range reads map to
+ * ranged GETs so resumable downloads do not fetch whole objects.
+ */
+public class ObjectStorageBackend implements StorageBackend {
+    
+    private final ObjectStoreClient client;
+    private final String keyPrefix;
+    
+    public ObjectStorageBackend(ObjectStoreClient client, String keyPrefix) {
+        this.client = client;
+        this.keyPrefix = keyPrefix;
+    }
+    
+    @Override
+    public void put(String key, Path source) throws IOException {
+        client.putObject(objectKey(key), source);
+        Files.deleteIfExists(source);
+    }
+    
+    @Override
+    public InputStream get(String key) throws IOException {
+        return require(key, client.getObject(objectKey(key), 0, -1));
+    }
+    
+    @Override
+    public InputStream getRange(String key, long offset, long length) throws IOException {
+        return require(key, client.getObject(objectKey(key), offset, length));
+    }
+    
+    @Override
+    public boolean delete(String key) throws IOException {
+        return client.deleteObject(objectKey(key));
+    }
+    
+    @Override
+    public StoredObject stat(String key) throws IOException {
+        return client.headObject(objectKey(key));
+    }
+    
+    @Override
+    public List<String> listKeys(String startAfter, int limit) throws IOException {
+        return client.listObjects(keyPrefix, startAfter != null ? objectKey(startAfter) : null, limit).stream()
+                .map(objectKey -> objectKey.substring(keyPrefix.length()))
+                .toList();
+    }
+    
+    /**
+     * Map a storage key to an object key
+     */
+    private String objectKey(String key) {
+        return keyPrefix + key;
+    }
+    
+    /**
+     * Fail like the filesystem backends when an object is missing
+     */
+    private InputStream require(String key, InputStream in) throws IOException {
+        if (in == null) {
+            throw new NoSuchFileException(key);
+        }
+        return in;
+    }
+}
@@ -0,0 +1,48 @@
+package com.filesharing.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Client interface for an S3-compatible object store
+ * Kept to the handful of calls the object storage backend needs, so the
+ * backend can run against a real bucket or the in-process stand-in.
+ */
+public interface ObjectStoreClient {
+    
+    /**
+     * Upload a local file as an object
+     */
+    void putObject(String key, Path source) throws IOException;
+    
+    /**
+     * Download an object, or part of it
+     * @param offset First byte to read
+     * @param length Number of bytes to read, or -1 for the rest of the object
+     * @return The object's bytes, or null if the object does not exist
+     */
+    InputStream getObject(String key, long offset, long length) throws IOException;
+    
+    /**
+     * Delete an object
+     * @return true if the object existed
+     */
+    boolean deleteObject(String key) throws IOException;
+    
+    /**
+     * Get an object's size and modification time
+     * @return The object's metadata, or null if the object does not exist
+     */
+    StoredObject headObject(String key) throws IOException;
+    
+    /**
+     * List object keys under a prefix in ascending order
+     * @param prefix Prefix the keys must start with
+     * @param startAfter Key to resume after, or null to start at the beginning
+     * @param limit Maximum number of keys to return
+     * @return The next keys; fewer than limit once the end is reached
+     */
+    List<String> listObjects(String prefix, String startAfter, int limit) throws IOException;
+}
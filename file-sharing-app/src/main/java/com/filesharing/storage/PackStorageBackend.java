@@ -0,0 +1,491 @@
+package com.filesharing.storage;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Storage backend that packs small objects into append-only segment files
+ * Objects up to the entry size limit are appended to the active segment with
+ * a CRC of their content; larger ones go to the wrapped backend. An in-memory
+ * index maps each key to its segment and offset and is rebuilt by scanning
+ * the segments on startup. Deletes append a tombstone, and a background
+ * compactor copies the live entries out of mostly dead segments.
+ *
+ * Record layout: magic, flags, timestamp, key length, data length, CRC-32,
+ * key bytes, data bytes.
+ */
+public class PackStorageBackend implements StorageBackend {
+    
+    private static final Logger logger = LoggerFactory.getLogger(PackStorageBackend.class);
+    
+    private static final int MAGIC = 0x50414B31; // "PAK1"
+    private static final byte FLAG_PUT = 0;
+    private static final byte FLAG_TOMBSTONE = 1;
+    private static final int HEADER_SIZE = 4 + 1 + 8 + 2 + 4 + 4;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".pack";
+    
+    private final StorageBackend delegate;
+    private final Path packDir;
+    private final long maxEntrySize;
+    private final long segmentSize;
+    private final double compactionThreshold;
+    
+    private final Map<String, PackEntry> index = new ConcurrentHashMap<>();
+    
+    // All segments by ID; the highest is the one being appended to. Guarded by writeLock
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Object writeLock = new Object();
+    
+    // Compacted segments, closed on the next pass once in-flight reads are done
+    private final List<Segment> retired = new ArrayList<>();
+    
+    public PackStorageBackend(StorageBackend delegate, Path packDir, long maxEntrySize,
+                              long segmentSize, double compactionThreshold) throws IOException {
+        this.delegate = delegate;
+        this.packDir = packDir;
+        this.maxEntrySize = maxEntrySize;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+        
+        Files.createDirectories(packDir);
+        loadSegments();
+    }
+    
+    @Override
+    public void put(String key, Path source) throws IOException {
+        long size = Files.size(source);
+        if (size > maxEntrySize) {
+            delegate.put(key, source);
+            return;
+        }
+        
+        byte[] data = Files.readAllBytes(source);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        synchronized (writeLock) {
+            append(key, FLAG_PUT, System.currentTimeMillis(), data, (int) crc.getValue());
+        }
+        Files.delete(source);
+    }
+    
+    @Override
+    public InputStream get(String key) throws IOException {
+        PackEntry entry = index.get(key);
+        if (entry == null) {
+            return delegate.get(key);
+        }
+        
+        byte[] data = read(entry, 0, entry.length);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if ((int) crc.getValue() != entry.crc) {
+            throw new IOException("CRC mismatch for " + key + " in " + entry.segment.path.getFileName());
+        }
+        return new ByteArrayInputStream(data);
+    }
+    
+    @Override
+    public InputStream getRange(String key, long offset, long length) throws IOException {
+        PackEntry entry = index.get(key);
+        if (entry == null) {
+            return delegate.getRange(key, offset, length);
+        }
+        // Partial reads cannot be checked against the CRC; full reads are
+        int start = (int) Math.min(offset, entry.length);
+        int count = (int) Math.min(length, entry.length - start);
+        return new ByteArrayInputStream(read(entry, start, count));
+    }
+    
+    @Override
+    public boolean delete(String key) throws IOException {
+        synchronized (writeLock) {
+            if (!index.containsKey(key)) {
+                return delegate.delete(key);
+            }
+            append(key, FLAG_TOMBSTONE, System.currentTimeMillis(), new byte[0], 0);
+            return true;
+        }
+    }
+    
+    @Override
+    public StoredObject stat(String key) throws IOException {
+        PackEntry entry = index.get(key);
+        if (entry == null) {
+            return delegate.stat(key);
+        }
+        return new StoredObject(entry.length, entry.timestamp);
+    }
+    
+    @Override
+    public Path localPath(String key) {
+        // Packed objects share a file with others, so only unpacked ones can be sent whole
+        return index.containsKey(key) ? null : delegate.localPath(key);
+    }
+    
+    /**
+     * Merges the packed keys with the wrapped backend's. Only the next limit
+     * packed keys are held while scanning the index.
+     */
+    @Override
+    public List<String> listKeys(String startAfter, int limit) throws IOException {
+        TreeSet<String> keys = new TreeSet<>(delegate.listKeys(startAfter, limit));
+        for (String key : index.keySet()) {
+            if (startAfter == null || key.compareTo(startAfter) > 0) {
+                keys.add(key);
+                if (keys.size() > limit) {
+                    keys.pollLast();
+                }
+            }
+        }
+        return new ArrayList<>(keys);
+    }
+    
+    /**
+     * Rewrite segments that are mostly dead
+     * Live entries and still-needed tombstones are appended to the active
+     * segment, then the old segment is removed.
+     */
+    @Scheduled(fixedDelayString = "${storage.pack.compaction-interval}")
+    public void compact() {
+        closeRetired();
+        
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (writeLock) {
+            for (Segment segment : segments.values()) {
+                if (segment != activeSegment() && !segment.damaged && segment.size > 0
+                        && (double) segment.deadBytes / segment.size >= compactionThreshold) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        
+        for (Segment segment : candidates) {
+            try {
+                long reclaimed = compactSegment(segment);
+                logger.info("Compacted {}, reclaiming {} bytes", segment.path.getFileName(), reclaimed);
+            } catch (IOException ex) {
+                logger.error("Could not compact {}", segment.path.getFileName(), ex);
+            }
+        }
+    }
+    
+    /**
+     * Close all segment files
+     */
+    @PreDestroy
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            closeRetired();
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+    }
+    
+    /**
+     * Copy the live records of a sealed segment forward and drop it
+     * @return Bytes reclaimed
+     */
+    private long compactSegment(Segment segment) throws IOException {
+        long[] copied = new long[1];
+        // Records are copied under the write lock one at a time, so puts and
+        // deletes interleave with compaction and always see a consistent index
+        scan(segment, false, (record, dataOffset) -> {
+            synchronized (writeLock) {
+                if (record.flags == FLAG_PUT) {
+                    PackEntry current = index.get(record.key);
+                    if (current != null && current.segment == segment && current.offset == dataOffset) {
+                        byte[] data = new byte[record.length];
+                        readFully(segment.channel, ByteBuffer.wrap(data), dataOffset);
+                        append(record.key, FLAG_PUT, record.timestamp, data, record.crc);
+                        copied[0] += record.size();
+                    }
+                } else if (!index.containsKey(record.key) && segments.firstKey() < segment.id) {
+                    // An older segment may still hold the deleted put
+                    append(record.key, FLAG_TOMBSTONE, record.timestamp, new byte[0], 0);
+                    copied[0] += record.size();
+                }
+            }
+        });
+        
+        synchronized (writeLock) {
+            segments.remove(segment.id);
+            retired.add(segment);
+            Files.deleteIfExists(segment.path);
+        }
+        return segment.size - copied[0];
+    }
+    
+    /**
+     * Append a record to the active segment and update the index
+     * Must hold writeLock
+     */
+    private void append(String key, byte flags, long timestamp, byte[] data, int crc) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int recordSize = HEADER_SIZE + keyBytes.length + data.length;
+        
+        Segment segment = activeSegment();
+        if (segment.size > 0 && segment.size + recordSize > segmentSize) {
+            segment = openSegment(segment.id + 1);
+        }
+        
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(MAGIC)
+                .put(flags)
+                .putLong(timestamp)
+                .putShort((short) keyBytes.length)
+                .putInt(data.length)
+                .putInt(crc)
+                .put(keyBytes)
+                .put(data)
+                .flip();
+        long recordOffset = segment.size;
+        while (record.hasRemaining()) {
+            segment.channel.write(record, recordOffset + record.position());
+        }
+        segment.channel.force(false);
+        segment.size += recordSize;
+        
+        PackEntry previous;
+        if (flags == FLAG_PUT) {
+            long dataOffset = recordOffset + HEADER_SIZE + keyBytes.length;
+            previous = index.put(key, new PackEntry(segment, dataOffset, data.length, crc, timestamp));
+        } else {
+            previous = index.remove(key);
+            segment.deadBytes += recordSize;
+        }
+        if (previous != null) {
+            previous.segment.deadBytes += HEADER_SIZE + keyBytes.length + previous.length;
+        }
+    }
+    
+    /**
+     * Rebuild the index from the segment files, repairing a torn tail on the last one
+     * Only the active segment can have been cut short by a crash; damage in a
+     * sealed one is reported and the file left as it is for inspection, with
+     * the records past the damage unindexed.
+     */
+    private void loadSegments() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(packDir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(id, openChannel(id, path));
+            }
+        }
+        
+        for (Segment segment : segments.values()) {
+            long end = scan(segment, true, (record, dataOffset) -> {
+                PackEntry previous;
+                if (record.flags == FLAG_PUT) {
+                    previous = index.put(record.key,
+                            new PackEntry(segment, dataOffset, record.length, record.crc, record.timestamp));
+                } else {
+                    previous = index.remove(record.key);
+                    segment.deadBytes += record.size();
+                }
+                if (previous != null) {
+                    previous.segment.deadBytes += HEADER_SIZE + record.keyLength + previous.length;
+                }
+            });
+            if (end < segment.size && segment != activeSegment()) {
+                logger.error("Damaged record at offset {} of sealed segment {}; ignoring its remaining {} bytes",
+                        end, segment.path.getFileName(), segment.size - end);
+                segment.damaged = true;
+            } else if (end < segment.size) {
+                logger.warn("Truncating {} from {} to {} bytes after an incomplete record",
+                        segment.path.getFileName(), segment.size, end);
+                segment.channel.truncate(end);
+                segment.size = end;
+            }
+        }
+        
+        if (segments.isEmpty()) {
+            openSegment(1);
+        }
+        logger.info("Loaded {} packed objects from {} segments", index.size(), segments.size());
+    }
+    
+    /**
+     * Visit each complete record of a segment in order
+     * @param verify Whether to stop at a record whose data fails its CRC
+     * @return Offset just past the last complete record
+     */
+    private long scan(Segment segment, boolean verify, RecordVisitor visitor) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+        long size = segment.channel.size();
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                break;
+            }
+            Record record = new Record();
+            record.flags = header.get();
+            record.timestamp = header.getLong();
+            record.keyLength = Short.toUnsignedInt(header.getShort());
+            record.length = header.getInt();
+            record.crc = header.getInt();
+            
+            long dataOffset = position + HEADER_SIZE + record.keyLength;
+            if (record.length < 0 || dataOffset + record.length > size) {
+                break;
+            }
+            ByteBuffer keyBuffer = ByteBuffer.allocate(record.keyLength);
+            readFully(segment.channel, keyBuffer, position + HEADER_SIZE);
+            record.key = new String(keyBuffer.array(), StandardCharsets.UTF_8);
+            
+            if (verify) {
+                byte[] data = new byte[record.length];
+                readFully(segment.channel, ByteBuffer.wrap(data), dataOffset);
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                if ((int) crc.getValue() != record.crc) {
+                    break;
+                }
+            }
+            
+            visitor.visit(record, dataOffset);
+            position = dataOffset + record.length;
+        }
+        return position;
+    }
+    
+    /**
+     * Read part of a packed entry with a positional read
+     */
+    private byte[] read(PackEntry entry, int offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        readFully(entry.segment.channel, ByteBuffer.wrap(data), entry.offset + offset);
+        return data;
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read == -1) {
+                throw new EOFException("Pack segment ended early");
+            }
+        }
+    }
+    
+    /**
+     * Must hold writeLock, or be called during construction
+     */
+    private Segment activeSegment() {
+        return segments.lastEntry().getValue();
+    }
+    
+    private Segment openSegment(int id) throws IOException {
+        Path path = packDir.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        Segment segment = openChannel(id, path);
+        segments.put(id, segment);
+        return segment;
+    }
+    
+    private Segment openChannel(int id, Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(id, path, channel, channel.size());
+    }
+    
+    private void closeRetired() {
+        synchronized (writeLock) {
+            for (Segment segment : retired) {
+                try {
+                    segment.channel.close();
+                } catch (IOException ex) {
+                    logger.warn("Could not close {}", segment.path.getFileName(), ex);
+                }
+            }
+            retired.clear();
+        }
+    }
+    
+    /**
+     * A segment file; size and dead bytes are guarded by writeLock
+     * A damaged segment failed its startup scan and is never compacted away.
+     */
+    private static class Segment {
+        
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        long deadBytes;
+        boolean damaged;
+        
+        Segment(int id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+    
+    /**
+     * Location of a packed object's content
+     */
+    private static class PackEntry {
+        
+        final Segment segment;
+        final long offset;
+        final int length;
+        final int crc;
+        final long timestamp;
+        
+        PackEntry(Segment segment, long offset, int length, int crc, long timestamp) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+            this.timestamp = timestamp;
+        }
+    }
+    
+    /**
+     * Header fields of a record read back from a segment
+     */
+    private static class Record {
+        
+        byte flags;
+        long timestamp;
+        String key;
+        int keyLength;
+        int length;
+        int crc;
+        
+        int size() {
+            return HEADER_SIZE + keyLength + length;
+        }
+    }
+    
+    @FunctionalInterface
+    private interface RecordVisitor {
+        
+        void visit(Record record, long dataOffset) throws IOException;
+    }
+}
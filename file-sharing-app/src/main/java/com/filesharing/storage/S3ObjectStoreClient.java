@@ -0,0 +1,284 @@
+package com.filesharing.storage;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Client for S3-compatible object stores over plain HTTP
+ * Uses path-style addressing and AWS Signature Version 4, which works with
+ * AWS S3, MinIO, Ceph RGW and similar stores without pulling in an SDK.
+ * Payloads are sent unsigned (UNSIGNED-PAYLOAD) so uploads are not read twice.
+ */
+public class S3ObjectStoreClient implements ObjectStoreClient {
+    
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SERVICE = "s3";
+    private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    private static final String SIGNED_HEADERS = "host;x-amz-content-sha256;x-amz-date";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private static final DateTimeFormatter AMZ_DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final int MAX_KEYS_PER_PAGE = 1000;
+    private static final Pattern LIST_KEY = Pattern.compile("<Key>(.*?)</Key>", Pattern.DOTALL);
+    private static final Pattern LIST_TRUNCATED = Pattern.compile("<IsTruncated>\\s*true\\s*</IsTruncated>");
+    
+    private final HttpClient httpClient;
+    private final URI endpoint;
+    private final String region;
+    private final String bucket;
+    private final String accessKey;
+    private final String secretKey;
+    
+    public S3ObjectStoreClient(String endpoint, String region, String bucket, String accessKey, String secretKey) {
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        this.endpoint = URI.create(endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint);
+        this.region = region;
+        this.bucket = bucket;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+    }
+    
+    @Override
+    public void putObject(String key, Path source) throws IOException {
+        HttpRequest request = signedRequest("PUT", key)
+                .PUT(HttpRequest.BodyPublishers.ofFile(source))
+                .build();
+        HttpResponse<String> response = send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("PUT " + key + " failed with status " + response.statusCode() + ": " + response.body());
+        }
+    }
+    
+    @Override
+    public InputStream getObject(String key, long offset, long length) throws IOException {
+        HttpRequest.Builder builder = signedRequest("GET", key).GET();
+        if (offset > 0 || length >= 0) {
+            String end = length >= 0 ? String.valueOf(offset + length - 1) : "";
+            builder.header("Range", "bytes=" + offset + "-" + end);
+        }
+        HttpResponse<InputStream> response = send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() == 404) {
+            response.body().close();
+            return null;
+        }
+        if (response.statusCode() / 100 != 2) {
+            response.body().close();
+            throw new IOException("GET " + key + " failed with status " + response.statusCode());
+        }
+        return response.body();
+    }
+    
+    @Override
+    public boolean deleteObject(String key) throws IOException {
+        // S3 deletes are idempotent, so ask first to report whether anything was there
+        boolean existed = headObject(key) != null;
+        HttpRequest request = signedRequest("DELETE", key).DELETE().build();
+        HttpResponse<Void> response = send(request, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() / 100 != 2 && response.statusCode() != 404) {
+            throw new IOException("DELETE " + key + " failed with status " + response.statusCode());
+        }
+        return existed;
+    }
+    
+    @Override
+    public StoredObject headObject(String key) throws IOException {
+        HttpRequest request = signedRequest("HEAD", key)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .build();
+        HttpResponse<Void> response = send(request, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 404) {
+            return null;
+        }
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("HEAD " + key + " failed with status " + response.statusCode());
+        }
+        long size = response.headers().firstValueAsLong("Content-Length").orElse(0);
+        long lastModified = response.headers().firstValue("Last-Modified")
+                .map(value -> ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli())
+                .orElse(0L);
+        return new StoredObject(size, lastModified);
+    }
+    
+    /**
+     * Pages through ListObjectsV2; a page holds at most 1000 keys, so larger
+     * limits take several requests, each resuming after the last key seen
+     */
+    @Override
+    public List<String> listObjects(String prefix, String startAfter, int limit) throws IOException {
+        List<String> keys = new ArrayList<>();
+        String after = startAfter;
+        while (keys.size() < limit) {
+            // Parameters in canonical (sorted) order, as Signature Version 4 expects
+            String query = "list-type=2"
+                    + "&max-keys=" + Math.min(limit - keys.size(), MAX_KEYS_PER_PAGE)
+                    + "&prefix=" + encode(prefix)
+                    + (after != null ? "&start-after=" + encode(after) : "");
+            HttpRequest request = signedRequest("GET", "", query).GET().build();
+            HttpResponse<String> response = send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() / 100 != 2) {
+                throw new IOException("LIST " + prefix + " failed with status " + response.statusCode() + ": " + response.body());
+            }
+            Matcher matcher = LIST_KEY.matcher(response.body());
+            int found = 0;
+            while (matcher.find()) {
+                after = unescapeXml(matcher.group(1));
+                keys.add(after);
+                found++;
+            }
+            if (found == 0 || !LIST_TRUNCATED.matcher(response.body()).find()) {
+                break;
+            }
+        }
+        return keys;
+    }
+    
+    /**
+     * Build a request for an object with Signature Version 4 headers
+     */
+    private HttpRequest.Builder signedRequest(String method, String key) {
+        return signedRequest(method, key, "");
+    }
+    
+    /**
+     * Build a request with Signature Version 4 headers
+     * @param key Object key, or empty for a request on the bucket itself
+     * @param query Canonical query string: encoded and sorted by parameter name
+     */
+    private HttpRequest.Builder signedRequest(String method, String key, String query) {
+        String canonicalUri = "/" + encodePath(bucket) + "/" + encodePath(key);
+        URI uri = URI.create(endpoint + canonicalUri + (query.isEmpty() ? "" : "?" + query));
+        
+        ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+        String amzDate = now.format(AMZ_DATE);
+        String day = now.format(AMZ_DAY);
+        String scope = day + "/" + region + "/" + SERVICE + "/aws4_request";
+        
+        String canonicalHeaders = "host:" + hostHeader(uri) + "\n"
+                + "x-amz-content-sha256:" + UNSIGNED_PAYLOAD + "\n"
+                + "x-amz-date:" + amzDate + "\n";
+        String canonicalRequest = method + "\n"
+                + canonicalUri + "\n"
+                + query + "\n"
+                + canonicalHeaders + "\n"
+                + SIGNED_HEADERS + "\n"
+                + UNSIGNED_PAYLOAD;
+        String stringToSign = ALGORITHM + "\n"
+                + amzDate + "\n"
+                + scope + "\n"
+                + sha256Hex(canonicalRequest);
+        
+        byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), day);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, SERVICE);
+        signingKey = hmac(signingKey, "aws4_request");
+        String signature = HexFormat.of().formatHex(hmac(signingKey, stringToSign));
+        
+        return HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofMinutes(5))
+                .header("x-amz-date", amzDate)
+                .header("x-amz-content-sha256", UNSIGNED_PAYLOAD)
+                .header("Authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope
+                        + ", SignedHeaders=" + SIGNED_HEADERS + ", Signature=" + signature);
+    }
+    
+    /**
+     * Send a request, restoring the interrupt flag if the caller is interrupted
+     */
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException {
+        try {
+            return httpClient.send(request, handler);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while calling object store", ex);
+        }
+    }
+    
+    /**
+     * Host header value as the HTTP client will send it
+     */
+    private String hostHeader(URI uri) {
+        return uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+    }
+    
+    /**
+     * URI-encode each path segment as Signature Version 4 expects
+     */
+    private String encodePath(String path) {
+        StringBuilder encoded = new StringBuilder();
+        for (String segment : path.split("/", -1)) {
+            if (encoded.length() > 0 || path.startsWith("/")) {
+                encoded.append('/');
+            }
+            encoded.append(encode(segment));
+        }
+        return encoded.toString();
+    }
+    
+    /**
+     * URI-encode a path segment or query parameter value as Signature Version 4 expects
+     */
+    private String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8)
+                .replace("+", "%20")
+                .replace("*", "%2A")
+                .replace("%7E", "~");
+    }
+    
+    /**
+     * Decode the entities S3 uses in XML listings
+     */
+    private static String unescapeXml(String value) {
+        return value.replace("&lt;", "<")
+                .replace("&gt;", ">")
+                .replace("&quot;", "\"")
+                .replace("&apos;", "'")
+                .replace("&#13;", "\r")
+                .replace("&amp;", "&");
+    }
+    
+    /**
+     * SHA-256 of a string in lowercase hex
+     */
+    private static String sha256Hex(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * HMAC-SHA256 of a string
+     */
+    private static byte[] hmac(byte[] key, String value) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.filesharing.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Storage backend interface for stored file content
+ * Content is addressed by an opaque key (the file's digest, or its generated
+ * name for files stored before content addressing). Services and controllers
+ * only talk to this interface, so backends can be swapped per deployment.
+ */
+public interface StorageBackend {
+    
+    /**
+     * Store the content of a fully written local file under a key
+     * The source file is consumed: it is moved or uploaded, then removed
+     * @param key Storage key
+     * @param source Local file holding the complete content
+     */
+    void put(String key, Path source) throws IOException;
+    
+    /**
+     * Open the content stored under a key
+     * @throws java.nio.file.NoSuchFileException if nothing is stored under the key
+     */
+    InputStream get(String key) throws IOException;
+    
+    /**
+     * Open part of the content stored under a key
+     * @param offset First byte to read
+     * @param length Number of bytes to read
+     * @throws java.nio.file.NoSuchFileException if nothing is stored under the key
+     */
+    InputStream getRange(String key, long offset, long length) throws IOException;
+    
+    /**
+     * Delete the content stored under a key
+     * @return true if something was deleted
+     */
+    boolean delete(String key) throws IOException;
+    
+    /**
+     * Get size and modification time of the content stored under a key
+     * @return The object's metadata, or null if nothing is stored under the key
+     */
+    StoredObject stat(String key) throws IOException;
+    
+    /**
+     * Get a local file holding the content, for zero-copy serving
+     * @return The file's path, or null if the backend cannot expose one
+     */
+    default Path localPath(String key) {
+        return null;
+    }
+    
+    /**
+     * List stored keys in ascending order, for background scans
+     * @param startAfter Key to resume after, or null to start at the beginning
+     * @param limit Maximum number of keys to return
+     * @return The next keys; fewer than limit once the end is reached
+     * @throws UnsupportedOperationException if the backend cannot list its keys
+     */
+    default List<String> listKeys(String startAfter, int limit) throws IOException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot list its keys");
+    }
+}
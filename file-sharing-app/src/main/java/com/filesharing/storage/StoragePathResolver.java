@@ -0,0 +1,99 @@
+package com.filesharing.storage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Maps stored file names to locations in the upload directory
+ * Files live under two levels of hex-prefix directories, e.g. ab/cd/abcd1234...,
+ * so no single directory grows past a few thousand entries. Files from the
+ * older flat layout still resolve until they have been migrated.
+ */
+@Component
+public class StoragePathResolver {
+    
+    private static final int SHARD_WIDTH = 2;
+    
+    @Value("${file.upload.dir}")
+    private String uploadDir;
+    
+    public StoragePathResolver() {
+    }
+    
+    /**
+     * Resolver for a storage root other than the configured upload directory
+     */
+    public StoragePathResolver(String uploadDir) {
+        this.uploadDir = uploadDir;
+    }
+    
+    /**
+     * Get the upload directory, creating it if it doesn't exist
+     */
+    public Path getUploadRoot() throws IOException {
+        Path uploadPath = Paths.get(uploadDir).toAbsolutePath().normalize();
+        Files.createDirectories(uploadPath);
+        return uploadPath;
+    }
+    
+    /**
+     * Location of a stored file in the sharded layout
+     */
+    public Path getShardedPath(String name) {
+        String prefix = shardPrefix(name);
+        return Paths.get(uploadDir).toAbsolutePath().normalize()
+                .resolve(prefix.substring(0, SHARD_WIDTH))
+                .resolve(prefix.substring(SHARD_WIDTH, 2 * SHARD_WIDTH))
+                .resolve(name);
+    }
+    
+    /**
+     * Location of a stored file in the old flat layout
+     */
+    public Path getLegacyPath(String name) {
+        return Paths.get(uploadDir).toAbsolutePath().normalize().resolve(name);
+    }
+    
+    /**
+     * Get the sharded location for a new file, creating its directories
+     */
+    public Path prepareTarget(String name) throws IOException {
+        Path target = getShardedPath(name);
+        Files.createDirectories(target.getParent());
+        return target;
+    }
+    
+    /**
+     * Find where a stored file currently lives
+     * The sharded path is checked again after the flat one, so a file being
+     * migrated between the two checks is still found
+     * @return The file's path, or null if it exists in neither layout
+     */
+    public Path resolveExisting(String name) {
+        Path sharded = getShardedPath(name);
+        if (Files.exists(sharded)) {
+            return sharded;
+        }
+        Path legacy = getLegacyPath(name);
+        if (Files.exists(legacy)) {
+            return legacy;
+        }
+        return Files.exists(sharded) ? sharded : null;
+    }
+    
+    /**
+     * First four hex digits used to pick the shard directories
+     * Digests and UUID names start with hex; anything else is hashed
+     */
+    private String shardPrefix(String name) {
+        String prefix = name.length() >= 2 * SHARD_WIDTH ? name.substring(0, 2 * SHARD_WIDTH).toLowerCase() : "";
+        if (prefix.length() == 2 * SHARD_WIDTH && prefix.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+            return prefix;
+        }
+        return String.format("%08x", name.hashCode());
+    }
+}
@@ -0,0 +1,17 @@
+package com.filesharing.storage;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Metadata of content held by a storage backend
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StoredObject {
+    
+    private long size;
+    private long lastModified;
+}
@@ -0,0 +1,516 @@
+package com.filesharing.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Storage backend that spreads objects over several local roots, e.g. one per disk
+ * Each key is placed on a consistent-hash ring, so adding a root only moves
+ * the keys that now hash to it, and is written to as many distinct roots as
+ * the replica count asks for. Reads try the key's roots in ring order and
+ * move on when a root is missing the object, fails, or does not answer within
+ * the read timeout; such roots are tried last for a cooldown period. Objects
+ * not yet on their ring roots, e.g. right after a root was added, are found
+ * by asking the remaining roots, and rebalance() moves them into place.
+ * With more than one replica a put succeeds while any placement root takes
+ * the write; the keys left short are remembered until repairReplicas()
+ * copies them onto the roots that missed them.
+ */
+public class StripedStorageBackend implements StorageBackend {
+    
+    private static final Logger logger = LoggerFactory.getLogger(StripedStorageBackend.class);
+    
+    private static final int VIRTUAL_NODES = 128;
+    private static final String TEMP_SUFFIX = ".part";
+    private static final Duration COOLDOWN = Duration.ofSeconds(30);
+    
+    private final List<Root> roots;
+    private final int replicas;
+    private final Duration readTimeout;
+    
+    // Ring position to root index
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+    
+    // Roots that recently failed or were slow, until when they are tried last
+    private final Map<Integer, Long> degradedUntil = new ConcurrentHashMap<>();
+    
+    // Keys written to fewer roots than their placement asks for
+    private final Set<String> underReplicated = ConcurrentHashMap.newKeySet();
+    
+    // Rebalance position: root being walked and the last key examined on it. Guarded by this
+    private int rebalanceRoot;
+    private String rebalanceAfter;
+    private int fixedThisPass;
+    private boolean rebalanced;
+    
+    public StripedStorageBackend(List<String> rootDirs, int replicas, Duration readTimeout) {
+        if (rootDirs.isEmpty()) {
+            throw new IllegalArgumentException("At least one storage root is required");
+        }
+        this.roots = new ArrayList<>();
+        for (String dir : rootDirs) {
+            StoragePathResolver resolver = new StoragePathResolver(dir);
+            roots.add(new Root(dir, resolver, new LocalStorageBackend(resolver)));
+        }
+        this.replicas = Math.max(1, Math.min(replicas, roots.size()));
+        this.readTimeout = readTimeout;
+        
+        for (int i = 0; i < roots.size(); i++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring.put(hash(roots.get(i).name + "#" + v), i);
+            }
+        }
+    }
+    
+    /**
+     * Fails only if no placement root takes the write; replicas missed on
+     * failing roots are left for repairReplicas(). The source is moved into a
+     * placement root on its own filesystem, after copying it to the others,
+     * so each replica's bytes are written once.
+     */
+    @Override
+    public void put(String key, Path source) throws IOException {
+        List<Integer> placement = placement(key);
+        int moveTo = rootOnSameStore(placement, source);
+        List<Integer> order = new ArrayList<>(placement);
+        if (moveTo >= 0) {
+            order.remove(Integer.valueOf(moveTo));
+            order.add(moveTo);
+        }
+        
+        IOException failure = null;
+        int written = 0;
+        try {
+            for (int index : order) {
+                try {
+                    if (index == moveTo) {
+                        roots.get(index).backend.put(key, source);
+                    } else {
+                        copyTo(roots.get(index), key, source);
+                    }
+                    written++;
+                } catch (IOException ex) {
+                    logger.warn("Storage root {} failed to write {}", roots.get(index).name, key, ex);
+                    degrade(index);
+                    failure = ex;
+                }
+            }
+        } finally {
+            Files.deleteIfExists(source);
+        }
+        
+        if (written == 0) {
+            throw failure;
+        }
+        if (written < placement.size()) {
+            underReplicated.add(key);
+        }
+    }
+    
+    @Override
+    public InputStream get(String key) throws IOException {
+        return firstAvailable(key, root -> root.backend.get(key));
+    }
+    
+    @Override
+    public InputStream getRange(String key, long offset, long length) throws IOException {
+        return firstAvailable(key, root -> root.backend.getRange(key, offset, length));
+    }
+    
+    @Override
+    public boolean delete(String key) throws IOException {
+        boolean deleted = false;
+        IOException failure = null;
+        for (Root root : roots) {
+            try {
+                deleted |= root.backend.delete(key);
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return deleted;
+    }
+    
+    @Override
+    public StoredObject stat(String key) throws IOException {
+        try {
+            return firstAvailable(key, root -> {
+                StoredObject stored = root.backend.stat(key);
+                if (stored == null) {
+                    throw new NoSuchFileException(key);
+                }
+                return stored;
+            });
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+    
+    @Override
+    public Path localPath(String key) {
+        long now = System.currentTimeMillis();
+        for (int index : candidates(key)) {
+            if (degradedUntil.getOrDefault(index, 0L) > now) {
+                continue;
+            }
+            Path path = roots.get(index).backend.localPath(key);
+            if (path != null) {
+                return path;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Merges the keys of every root, so replicas and misplaced objects are listed once
+     */
+    @Override
+    public List<String> listKeys(String startAfter, int limit) throws IOException {
+        TreeSet<String> keys = new TreeSet<>();
+        for (Root root : roots) {
+            keys.addAll(root.backend.listKeys(startAfter, limit));
+            while (keys.size() > limit) {
+                keys.pollLast();
+            }
+        }
+        return new ArrayList<>(keys);
+    }
+    
+    /**
+     * Move objects that are not on their ring roots into place
+     * Also copies objects to ring roots missing a replica. Each call examines
+     * the next batch of keys, resuming on the root and after the key where
+     * the last call stopped, so a pass over all roots lists every key once.
+     * @param limit Maximum number of objects to examine in this call
+     * @param guard Runs each copy while the object cannot be deleted
+     * @return Number of objects fixed
+     */
+    public synchronized int rebalance(int limit, ObjectGuard guard) throws IOException {
+        int fixed = 0;
+        int examined = 0;
+        while (examined < limit && !rebalanced) {
+            int batch = limit - examined;
+            List<String> keys = roots.get(rebalanceRoot).backend.listKeys(rebalanceAfter, batch);
+            for (String key : keys) {
+                if (rebalanceKey(key, rebalanceRoot, guard)) {
+                    fixed++;
+                    fixedThisPass++;
+                }
+                rebalanceAfter = key;
+            }
+            examined += keys.size();
+            
+            if (keys.size() < batch) {
+                // Past the last key on this root
+                rebalanceAfter = null;
+                rebalanceRoot = (rebalanceRoot + 1) % roots.size();
+                if (rebalanceRoot == 0) {
+                    // A pass that fixed nothing means every object is in place
+                    rebalanced = fixedThisPass == 0;
+                    fixedThisPass = 0;
+                }
+            }
+        }
+        return fixed;
+    }
+    
+    /**
+     * Whether the last full rebalance pass found every object in place
+     */
+    public synchronized boolean isRebalanced() {
+        return rebalanced;
+    }
+    
+    /**
+     * Copy objects written while a root was failing onto the roots that missed them
+     * @param limit Maximum number of objects to repair in this call
+     * @param guard Runs each copy while the object cannot be deleted
+     * @return Number of objects now fully replicated
+     */
+    public int repairReplicas(int limit, ObjectGuard guard) throws IOException {
+        int repaired = 0;
+        Iterator<String> keys = underReplicated.iterator();
+        while (keys.hasNext() && repaired < limit) {
+            String key = keys.next();
+            keys.remove();
+            try {
+                boolean referenced = guard.whileReferenced(key, () -> {
+                    for (int index : placement(key)) {
+                        Root target = roots.get(index);
+                        if (target.backend.stat(key) == null) {
+                            copyFromReplica(target, key);
+                        }
+                    }
+                });
+                if (referenced) {
+                    repaired++;
+                }
+            } catch (NoSuchFileException ex) {
+                // Deleted since it was written
+            } catch (IOException ex) {
+                underReplicated.add(key);
+                throw ex;
+            }
+        }
+        return repaired;
+    }
+    
+    /**
+     * Bring one object found on a root into its ring placement
+     * Copies run under the guard, so a delete cannot finish in between and
+     * leave a copy behind.
+     * @return true if anything was copied or removed
+     */
+    private boolean rebalanceKey(String key, int foundOn, ObjectGuard guard) throws IOException {
+        List<Integer> placement = placement(key);
+        Root source = roots.get(foundOn);
+        boolean[] changed = new boolean[1];
+        
+        try {
+            boolean referenced = guard.whileReferenced(key, () -> {
+                for (int index : placement) {
+                    Root target = roots.get(index);
+                    if (index == foundOn || target.backend.stat(key) != null) {
+                        continue;
+                    }
+                    try (InputStream in = source.backend.get(key)) {
+                        stageAndPut(target, key, in);
+                    }
+                    changed[0] = true;
+                }
+            });
+            if (!referenced) {
+                return false;
+            }
+        } catch (NoSuchFileException ex) {
+            // Deleted while rebalancing
+            return changed[0];
+        }
+        
+        if (!placement.contains(foundOn)) {
+            source.backend.delete(key);
+            return true;
+        }
+        return changed[0];
+    }
+    
+    /**
+     * First of the given roots on the same filesystem as a local file, where it can be moved atomically
+     * @return Root index, or -1 if there is none
+     */
+    private int rootOnSameStore(List<Integer> placement, Path source) {
+        try {
+            FileStore sourceStore = Files.getFileStore(source);
+            for (int index : placement) {
+                if (roots.get(index).fileStore().equals(sourceStore)) {
+                    return index;
+                }
+            }
+        } catch (IOException ex) {
+            logger.debug("Could not tell the filesystem of {}; copying to every root", source, ex);
+        }
+        return -1;
+    }
+    
+    /**
+     * Write a copy of a local file to one root
+     */
+    private void copyTo(Root root, String key, Path source) throws IOException {
+        // A move across disks is not atomic, so stage a copy on the target disk first
+        Path staged = root.resolver.getUploadRoot().resolve(UUID.randomUUID() + TEMP_SUFFIX);
+        try {
+            Files.copy(source, staged, StandardCopyOption.REPLACE_EXISTING);
+            root.backend.put(key, staged);
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+    }
+    
+    /**
+     * Write an object read from another root to one root
+     */
+    private void copyFromReplica(Root target, String key) throws IOException {
+        try (InputStream in = firstAvailable(key, root -> root.backend.get(key))) {
+            stageAndPut(target, key, in);
+        }
+    }
+    
+    private void stageAndPut(Root target, String key, InputStream in) throws IOException {
+        Path staged = target.resolver.getUploadRoot().resolve(UUID.randomUUID() + TEMP_SUFFIX);
+        try {
+            Files.copy(in, staged);
+            target.backend.put(key, staged);
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+    }
+    
+    /**
+     * Run a read against the key's roots until one succeeds
+     * Healthy ring roots come first, then degraded ones, then every other
+     * root. Roots that fail or exceed the read timeout are marked degraded.
+     */
+    private <T> T firstAvailable(String key, RootOperation<T> operation) throws IOException {
+        List<Integer> order = candidates(key);
+        IOException failure = null;
+        for (int i = 0; i < order.size(); i++) {
+            int index = order.get(i);
+            Root root = roots.get(index);
+            boolean last = i == order.size() - 1;
+            
+            FutureTask<T> task = new FutureTask<>(() -> operation.apply(root));
+            Thread.ofVirtual().name("storage-read-" + index).start(task);
+            try {
+                return last ? task.get() : task.get(readTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                logger.warn("Storage root {} did not answer within {}; trying the next replica", root.name, readTimeout);
+                degrade(index);
+                closeWhenDone(task);
+            } catch (ExecutionException ex) {
+                if (!(ex.getCause() instanceof NoSuchFileException)) {
+                    logger.warn("Storage root {} failed to read {}; trying the next replica", root.name, key, ex.getCause());
+                    degrade(index);
+                }
+                failure = ex.getCause() instanceof IOException io ? io : new IOException(ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                task.cancel(true);
+                throw new IOException("Interrupted while reading " + key, ex);
+            }
+        }
+        throw failure != null ? failure : new NoSuchFileException(key);
+    }
+    
+    /**
+     * Close the stream of a read that was given up on, whenever it completes
+     */
+    private void closeWhenDone(Future<?> task) {
+        Thread.ofVirtual().start(() -> {
+            try {
+                if (task.get() instanceof InputStream in) {
+                    in.close();
+                }
+            } catch (Exception ex) {
+                // Nothing to close
+            }
+        });
+    }
+    
+    private void degrade(int index) {
+        degradedUntil.put(index, System.currentTimeMillis() + COOLDOWN.toMillis());
+    }
+    
+    /**
+     * Every root in the order reads should try them for a key
+     */
+    private List<Integer> candidates(String key) {
+        long now = System.currentTimeMillis();
+        Set<Integer> healthy = new LinkedHashSet<>();
+        Set<Integer> degraded = new LinkedHashSet<>();
+        for (int index : placement(key)) {
+            (degradedUntil.getOrDefault(index, 0L) > now ? degraded : healthy).add(index);
+        }
+        Set<Integer> order = new LinkedHashSet<>(healthy);
+        order.addAll(degraded);
+        for (int index = 0; index < roots.size(); index++) {
+            order.add(index);
+        }
+        return new ArrayList<>(order);
+    }
+    
+    /**
+     * Distinct roots holding a key, walking the ring clockwise from its position
+     */
+    private List<Integer> placement(String key) {
+        Set<Integer> placement = new LinkedHashSet<>();
+        long position = hash(key);
+        for (int index : ring.tailMap(position).values()) {
+            if (placement.size() == replicas) {
+                break;
+            }
+            placement.add(index);
+        }
+        for (int index : ring.values()) {
+            if (placement.size() == replicas) {
+                break;
+            }
+            placement.add(index);
+        }
+        return new ArrayList<>(placement);
+    }
+    
+    /**
+     * Ring position of a string: the first 8 bytes of its MD5
+     */
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * A storage root and the local backend over it
+     */
+    private static class Root {
+        
+        final String name;
+        final StoragePathResolver resolver;
+        final LocalStorageBackend backend;
+        private volatile FileStore store;
+        
+        Root(String name, StoragePathResolver resolver, LocalStorageBackend backend) {
+            this.name = name;
+            this.resolver = resolver;
+            this.backend = backend;
+        }
+        
+        /**
+         * Filesystem holding the root, looked up once
+         */
+        FileStore fileStore() throws IOException {
+            if (store == null) {
+                store = Files.getFileStore(resolver.getUploadRoot());
+            }
+            return store;
+        }
+    }
+    
+    @FunctionalInterface
+    private interface RootOperation<T> {
+        
+        T apply(Root root) throws IOException;
+    }
+}